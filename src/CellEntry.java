@@ -1,63 +1,57 @@
 // Represents a cell entry in a 2D index system (e.g., A1, B2)
 public class CellEntry implements Index2D {
+    private static final int CACHE_BITS = 10;
+    private static final CellEntry[] CACHE = new CellEntry[1 << CACHE_BITS];
+
     private final String index;
+    private final long ref; // the packed column and zero-based row, CellRef.INVALID if the index is not valid
 
-    // Constructor: Initializes the CellEntry with the given index.
+    // Constructor: Initializes the CellEntry with the given index, parsing it once.
     public CellEntry(String index) {
         this.index = index;
+        long parsed = index == null ? CellRef.INVALID : CellRef.parse(index, 0, index.length());
+        this.ref = parsed == CellRef.INVALID || CellRef.y(parsed) < 1
+                ? CellRef.INVALID : CellRef.pack(CellRef.x(parsed), CellRef.y(parsed) - 1);
     }
 
     /**
-     * Checks if the current index is valid.
-     * A valid index starts with a letter (A-Z) followed by a numeric part (1-99).
-     * @return true if the index is valid, false otherwise.
+     * Returns an interned entry for the given index: entries are kept in a small direct mapped cache,
+     * so repeated lookups of the same index share a single (immutable) instance.
+     * @param index the index, e.g. "A1"
+     * @return an entry equal to new CellEntry(index)
      */
-    @Override
-    public boolean isValid() {
-        if (index == null || index.isBlank()) return false;
-
-        char column = Character.toUpperCase(index.charAt(0));
-        String rowPart = index.substring(1);
-
-        return Character.isLetter(column)
-                && rowPart.matches("\\d+")
-                && isRowInRange(rowPart)
-                && isColumnInR(column);
-    }
-
-    /**
-     * Validates if the row part of the index is within range (1-99).
-     * @param rowPart The numeric part of the index.
-     * @return true if the row is valid, false otherwise.
-     */
-    private boolean isRowInRange(String rowPart) {
-        try {
-            int row = Integer.parseInt(rowPart);
-            return row >= 1 && row <= 99;
-        } catch (NumberFormatException e) {
-            return false;
+    public static CellEntry of(String index) {
+        if (index == null) return new CellEntry(null);
+        int slot = (index.hashCode() * 0x9E3779B9) >>> (32 - CACHE_BITS);
+        CellEntry entry = CACHE[slot]; // a racy read is fine, entries are immutable
+        if (entry == null || !entry.index.equals(index)) {
+            entry = new CellEntry(index);
+            CACHE[slot] = entry;
         }
+        return entry;
     }
 
     /**
-     * Validates if the column part of the index is within range (A-Z).
-     * @param column The column character to check.
-     * @return true if the column is valid, false otherwise.
+     * Checks if the current index is valid.
+     * A valid index is a column name of letters (A-Z, AA-ZZ, AAA-...) followed by a row number
+     * (1 up to Integer.MAX_VALUE), ignoring case.
+     * @return true if the index is valid, false otherwise.
      */
-    private boolean isColumnInR(char column) {
-        return column >= 'A' && column <= 'Z';
+    @Override
+    public boolean isValid() {
+        return ref != CellRef.INVALID;
     }
 
     /**
      * Retrieves the column index (X-coordinate) as a zero-based integer.
-     * Converts the column letter to its corresponding index (e.g., A -> 0, B -> 1).
+     * Converts the column name to its corresponding index (e.g., A -> 0, Z -> 25, AA -> 26).
      * @return the column index as an integer.
      * @throws IllegalStateException if the index is not valid.
      */
     @Override
     public int getX() {
         ensureValidIndex();
-        return Character.toUpperCase(index.charAt(0)) - 'A';
+        return CellRef.x(ref);
     }
 
     /**
@@ -69,7 +63,7 @@ public class CellEntry implements Index2D {
     @Override
     public int getY() {
         ensureValidIndex();
-        return Integer.parseInt(index.substring(1)) - 1;
+        return CellRef.y(ref);
     }
 
     /**
@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from long keys (packed cell coordinates, see CellRef.pack) to int slots, used by sparse sheets.
+ * Keys and values are kept in two primitive arrays probed linearly, so lookups do not allocate.
+ * The table is resized to keep it at most half full, entries are never removed.
+ */
+final class CellMap {
+    private static final int ABSENT = -1;
+
+    private long[] keys;
+    private int[] values; // ABSENT marks a free entry
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     * @param capacity the expected number of entries
+     */
+    CellMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(8, capacity * 2 - 1)) << 1;
+        keys = new long[length];
+        values = new int[length];
+        Arrays.fill(values, ABSENT);
+    }
+
+    /**
+     * @return the number of entries in this map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param key the packed coordinates
+     * @return the slot mapped to the key, or -1 if none
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == ABSENT) return ABSENT;
+            if (keys[i] == key) return values[i];
+        }
+    }
+
+    /**
+     * Maps a key to a slot, replacing its previous slot (if any).
+     * @param key  the packed coordinates
+     * @param slot the slot, not negative
+     */
+    void put(long key, int slot) {
+        if (2 * (size + 1) > keys.length) resize();
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != ABSENT && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == ABSENT) size++;
+        keys[i] = key;
+        values[i] = slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, ABSENT);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == ABSENT) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != ABSENT) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    // Spreads the bits of a key (Fibonacci hashing), so neighbouring cells do not cluster
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
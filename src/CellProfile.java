@@ -0,0 +1,28 @@
+import java.util.List;
+
+/**
+ * The evaluation metrics of a single cell, as reported by Ex2Sheet.profile().
+ * @param cell        the name of the cell (e.g., "B3")
+ * @param evaluations the number of evaluations of the cell
+ * @param totalNanos  the cumulative duration of its evaluations
+ * @param maxNanos    the duration of its longest evaluation
+ * @param hits        the number of reads of its value which were up to date
+ * @param misses      the number of reads of its value which had to be recomputed
+ * @param depth       its dependency depth (see Sheet.depth()), -1 if it is on a cycle
+ * @param precedents  the names of the cells it references
+ */
+public record CellProfile(String cell, long evaluations, long totalNanos, long maxNanos,
+                          long hits, long misses, int depth, List<String> precedents) {
+    /**
+     * The header line of the CSV export.
+     */
+    public static final String CSV_HEADER = "cell,evaluations,total_ns,max_ns,hits,misses,depth,precedents";
+
+    /**
+     * @return the metrics as a CSV line (the precedents are separated by spaces)
+     */
+    public String toCsv() {
+        return cell + "," + evaluations + "," + totalNanos + "," + maxNanos + "," + hits + "," + misses + ","
+                + depth + "," + String.join(" ", precedents);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Encodes and decodes cell references without allocating.
+ * A reference is a column name in bijective base 26 (A -> 0, ..., Z -> 25, AA -> 26, ..., ZZ -> 701,
+ * AAA -> 702, ..., ignoring case) followed by a row number of ASCII digits (e.g., "B3", "aa100").
+ * Parsed references are packed into a single long holding the column in its high int and the row in
+ * its low int, text is always scanned in place (a CharSequence region), never copied.
+ */
+final class CellRef {
+    static final long INVALID = -1L; // never a packed reference, whose coordinates are not negative
+
+    private CellRef() {;}
+
+    /**
+     * Packs the x,y coordinates of a cell into a single long.
+     */
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the x coordinate (column) of a packed reference
+     */
+    static int x(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    /**
+     * @return the y coordinate (row) of a packed reference
+     */
+    static int y(long ref) {
+        return (int) ref;
+    }
+
+    /**
+     * Parses a whole reference, the row is taken as is (e.g., "B3" is 1,3).
+     * @return the packed column and row of text[from..to), or INVALID
+     */
+    static long parse(CharSequence text, int from, int to) {
+        int letters = letters(text, from, to);
+        int x = parseColumn(text, from, letters), y = parseDigits(text, letters, to);
+        return x < 0 || y < 0 ? INVALID : pack(x, y);
+    }
+
+    /**
+     * Finds the end of the reference starting at from: a run of letters followed by a run of digits.
+     * @return the position after the reference in text[from..to)
+     */
+    static int end(CharSequence text, int from, int to) {
+        int pos = letters(text, from, to);
+        while (pos < to && isDigit(text.charAt(pos))) pos++;
+        return pos;
+    }
+
+    /**
+     * Finds the end of the run of ASCII letters starting at from.
+     * @return the position of the first non letter in text[from..to), or to
+     */
+    static int letters(CharSequence text, int from, int to) {
+        while (from < to && isLetter(text.charAt(from))) from++;
+        return from;
+    }
+
+    /**
+     * Parses a column name, ignoring case.
+     * @return the column index of text[from..to), or -1 if it is not a column name or does not fit an int
+     */
+    static int parseColumn(CharSequence text, int from, int to) {
+        if (from >= to) return -1;
+        long column = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (!isLetter(c)) return -1;
+            column = column * 26 + (Character.toUpperCase(c) - 'A' + 1);
+            if (column > Integer.MAX_VALUE + 1L) return -1;
+        }
+        return (int) (column - 1);
+    }
+
+    /**
+     * Parses a non negative int made of ASCII digits only (no sign), such as a row number.
+     * @return the value of text[from..to), or -1 if it is not a number or does not fit an int
+     */
+    static int parseDigits(CharSequence text, int from, int to) {
+        if (from >= to) return -1;
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) return -1;
+            if (value > (Integer.MAX_VALUE - (c - '0')) / 10) return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Converts a column index to its name (e.g., 0 -> "A", 26 -> "AA").
+     * @param x the column index, not negative
+     * @return the column name in uppercase
+     */
+    static String columnName(int x) {
+        char[] name = new char[7]; // 26^7 > Integer.MAX_VALUE
+        int pos = name.length;
+        for (long column = x + 1L; column > 0; column = (column - 1) / 26) {
+            name[--pos] = (char) ('A' + (column - 1) % 26);
+        }
+        return new String(name, pos, name.length - pos);
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
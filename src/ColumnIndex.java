@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * An index over the computed values of the rows of a single column, answering range aggregates
+ * (sum, count, min, max and the numbers of error and cycle cells) in O(log rows) and updated in O(log rows)
+ * whenever a value changes. It is a segment tree over all the rows of the column whose nodes are only
+ * allocated along the paths to the rows which ever held a value, so its memory scales with the populated
+ * rows (times log rows), not with the rows spanned by the ranges reading it. Every inner node holds the
+ * aggregates of its two children, recomputed from them on update, so sums never drift with the updates.
+ */
+final class ColumnIndex {
+    static final byte NONE = 0, VALUE = 1, ERROR = 2, CYCLE = 3; // the kinds of cells (not a number, a number, an error, a cycle)
+    private static final int EMPTY = 0, ROOT = 1; // node 0 is an empty subtree, the child of every missing child
+
+    private final int rows;
+    private int nodes; // the number of allocated nodes, the empty node and the root included
+    private int[] left, right; // the children of every node, EMPTY for none
+    private double[] sum, min, max;
+    private int[] count, errors, cycles;
+    private final int[] path = new int[33]; // the nodes from the root to an updated row
+
+    /**
+     * Constructs an index of empty (NONE) cells.
+     * @param rows the number of indexed rows
+     */
+    ColumnIndex(int rows) {
+        this.rows = Math.max(1, rows);
+        allocate(16);
+        nodes = 2;
+    }
+
+    /**
+     * @return the number of indexed rows (the rows 0..rows()-1)
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of allocated nodes, O(populated rows * log rows)
+     */
+    int nodes() {
+        return nodes;
+    }
+
+    /**
+     * Replaces the value of a row.
+     * @param row   the row, 0 &lt;= row &lt; rows()
+     * @param kind  NONE, VALUE, ERROR or CYCLE
+     * @param value the value of a VALUE cell (ignored for the other kinds)
+     */
+    void update(int row, byte kind, double value) {
+        int node = ROOT, depth = 0;
+        for (int lo = 0, hi = rows - 1; lo < hi; ) {
+            path[depth++] = node;
+            int mid = (lo + hi) >>> 1;
+            boolean toLeft = row <= mid;
+            int child = toLeft ? left[node] : right[node];
+            if (child == EMPTY) {
+                if (kind == NONE) return; // a missing row is already empty
+                child = newNode();
+                if (toLeft) left[node] = child;
+                else right[node] = child;
+            }
+            node = child;
+            if (toLeft) hi = mid;
+            else lo = mid + 1;
+        }
+        boolean isValue = kind == VALUE;
+        sum[node] = isValue ? value : 0;
+        min[node] = isValue ? value : Double.POSITIVE_INFINITY;
+        max[node] = isValue ? value : Double.NEGATIVE_INFINITY;
+        count[node] = isValue ? 1 : 0;
+        errors[node] = kind == ERROR ? 1 : 0;
+        cycles[node] = kind == CYCLE ? 1 : 0;
+        while (depth > 0) {
+            node = path[--depth];
+            int l = left[node], r = right[node];
+            sum[node] = sum[l] + sum[r];
+            min[node] = Math.min(min[l], min[r]);
+            max[node] = Math.max(max[l], max[r]);
+            count[node] = count[l] + count[r];
+            errors[node] = errors[l] + errors[r];
+            cycles[node] = cycles[l] + cycles[r];
+        }
+    }
+
+    /**
+     * Adds the aggregates of the rows from..to (inclusive) to stats, the rows out of the index are empty.
+     * @param from the first row
+     * @param to   the last row
+     */
+    void query(int from, int to, Stats stats) {
+        from = Math.max(0, from);
+        to = Math.min(rows - 1, to);
+        if (from <= to) query(ROOT, 0, rows - 1, from, to, stats);
+    }
+
+    private void query(int node, int lo, int hi, int from, int to, Stats stats) {
+        if (from <= lo && hi <= to) {
+            stats.add(this, node);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (from <= mid && left[node] != EMPTY) query(left[node], lo, mid, from, to, stats);
+        if (to > mid && right[node] != EMPTY) query(right[node], mid + 1, hi, from, to, stats);
+    }
+
+    private int newNode() {
+        if (nodes == sum.length) allocate(2 * nodes);
+        return nodes++;
+    }
+
+    private void allocate(int capacity) {
+        int old = sum == null ? 0 : sum.length;
+        left = left == null ? new int[capacity] : Arrays.copyOf(left, capacity);
+        right = right == null ? new int[capacity] : Arrays.copyOf(right, capacity);
+        sum = sum == null ? new double[capacity] : Arrays.copyOf(sum, capacity);
+        min = min == null ? new double[capacity] : Arrays.copyOf(min, capacity);
+        max = max == null ? new double[capacity] : Arrays.copyOf(max, capacity);
+        count = count == null ? new int[capacity] : Arrays.copyOf(count, capacity);
+        errors = errors == null ? new int[capacity] : Arrays.copyOf(errors, capacity);
+        cycles = cycles == null ? new int[capacity] : Arrays.copyOf(cycles, capacity);
+        Arrays.fill(min, old, capacity, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, old, capacity, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * The aggregates of the cells of one or more ranges (and single values), accumulated by query().
+     */
+    static final class Stats {
+        double sum, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        int count, errors, cycles;
+
+        // Adds a single number
+        void add(double value) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            count++;
+        }
+
+        private void add(ColumnIndex index, int node) {
+            sum += index.sum[node];
+            min = Math.min(min, index.min[node]);
+            max = Math.max(max, index.max[node]);
+            count += index.count[node];
+            errors += index.errors[node];
+            cycles += index.cycles[node];
+        }
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * A formula compiled into JVM bytecode by FormulaCompiler.
+ * The values of the referenced cells are passed in the order of Formula.references().
+ */
+@FunctionalInterface
+public interface CompiledFormula {
+    /**
+     * @param values the values of the referenced cells, values[i] is the value of the i-th reference
+     * @return the value of the formula
+     * @throws ArithmeticException in case of a division by zero
+     */
+    double evaluate(double[] values);
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Sheet which can be shared by many threads, backed by an Ex2Sheet (the recalculation engine).
+ * The engine is never accessed by two threads at once: an Ex2Sheet and its cells are unsynchronized,
+ * and a recalculation writes them (e.g., the error types of the cells).
+ *
+ * Writers never wait for a recalculation: set() records the edit in the stripe of its cell, the sheet is
+ * split into regions of 8x8 cells hashed over STRIPES locks, so writers of different regions do not contend.
+ * The recalculation engine drains the edits of all the stripes into the Ex2Sheet, recalculates it and
+ * publishes an immutable snapshot of the whole sheet (see Snapshot), versioned by the number of edits
+ * applied. A snapshot is made of a SheetSnapshot per region, copy on write: a recalculation only copies
+ * the regions of the cells it recomputed, the other regions are shared with the previous snapshot.
+ * Readers only read the last snapshot, so the values they see are always those of a single
+ * recalculation (never torn) and they do not block writers.
+ *
+ * value() (and get()) runs a single recalculation when edits are pending, unless another thread is running
+ * it: the edits submitted meanwhile are applied by the next read, so every edit is eventually published and
+ * a reader never waits for the writers to stop, even under sustained writes.
+ * eval(), depth(), save() and load() wait for the engine and apply all the edits submitted before them.
+ */
+public class ConcurrentSheet implements Sheet {
+    private static final int STRIPES = 64; // a power of two
+    private static final int REGION_BITS = 3; // regions of 8x8 cells share a stripe
+
+    private final Ex2Sheet engine; // only accessed holding recalc
+    private final ReentrantLock recalc = new ReentrantLock();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong submitted = new AtomicLong(); // the number of edits submitted by set()
+    private final int width, height;
+    private volatile Snapshot snapshot;
+
+    // The edits of the cells of a stripe not applied to the engine yet, the last edit of a cell wins
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        Map<Long, String> edits = new HashMap<>();
+    }
+
+    /**
+     * Constructs a concurrent sheet with the specified dimensions.
+     * @param width  the number of columns
+     * @param height the number of rows
+     */
+    public ConcurrentSheet(int width, int height) {
+        this.width = width;
+        this.height = height;
+        engine = new Ex2Sheet(width, height);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        int size = 1 << REGION_BITS;
+        snapshot = new Snapshot(new SheetSnapshot[(width + size - 1) / size][(height + size - 1) / size], 0); // all empty
+    }
+
+    /**
+     * Constructs a concurrent sheet with default dimensions.
+     */
+    public ConcurrentSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Sets the content of a cell, holding only the lock of its stripe. The edit is applied by the next
+     * recalculation (see value() and eval()).
+     * @param x the column index
+     * @param y the row index
+     * @param c the new content for the cell
+     */
+    @Override
+    public void set(int x, int y, String c) {
+        if (!isIn(x, y)) return;
+        Stripe stripe = stripes[((x >> REGION_BITS) * 31 + (y >> REGION_BITS)) & (STRIPES - 1)];
+        stripe.lock.lock();
+        try {
+            stripe.edits.put((long) x << 32 | y, c);
+            submitted.incrementAndGet(); // within the lock, so the edit is drained with the count
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves a read-only copy of a cell as of the last snapshot, after recalculating if possible.
+     * @param x the column index
+     * @param y the row index
+     * @return the cell (its setters throw UnsupportedOperationException, use set()), or null if out of bounds
+     */
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        Snapshot s = snapshot();
+        return new SnapshotCell(s.data(x, y), s.type(x, y));
+    }
+
+    /**
+     * Retrieves a read-only copy of a cell based on a string entry (e.g., "A1").
+     * @param entry the cell's string representation
+     * @return the cell at the specified entry, or null if invalid
+     */
+    @Override
+    public Cell get(String entry) {
+        long ref = entry == null ? CellRef.INVALID : CellRef.parse(entry, 0, entry.length());
+        return ref != CellRef.INVALID ? get(CellRef.x(ref), CellRef.y(ref)) : null;
+    }
+
+    /**
+     * Returns the value of a cell as of the last snapshot, after recalculating if possible.
+     * Never waits for a recalculation run by another thread.
+     * @param x the column index
+     * @param y the row index
+     * @return the computed value of the cell, or an error if out of bounds (as Ex2Sheet.value())
+     */
+    @Override
+    public String value(int x, int y) {
+        if (!isIn(x, y)) return "ERR_Cycle!!!";
+        return snapshot().value(x, y);
+    }
+
+    /**
+     * Applies all the edits submitted so far and returns the value of a cell.
+     */
+    @Override
+    public String eval(int x, int y) {
+        eval();
+        return value(x, y);
+    }
+
+    /**
+     * Applies all the edits submitted so far and recalculates, waiting for the engine if needed.
+     */
+    @Override
+    public void eval() {
+        recalc.lock();
+        try {
+            update();
+        } finally {
+            recalc.unlock();
+        }
+        refresh();
+    }
+
+    @Override
+    public int[][] depth() {
+        recalc.lock();
+        try {
+            update();
+            return engine.depth();
+        } finally {
+            recalc.unlock();
+            refresh();
+        }
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        recalc.lock();
+        try {
+            update();
+            engine.save(fileName);
+        } finally {
+            recalc.unlock();
+            refresh();
+        }
+    }
+
+    /**
+     * Loads the sheet's content from a file (see Ex2Sheet.load()), after the edits submitted before it.
+     */
+    @Override
+    public void load(String fileName) throws IOException {
+        recalc.lock();
+        try {
+            update();
+            engine.load(fileName);
+            long[] loaded = engine.nonEmptyCells(), dirty = engine.pendingCells(); // the loaded cells and their dependents
+            engine.eval();
+            publish(snapshot.applied(), loaded, dirty);
+        } finally {
+            recalc.unlock();
+            refresh();
+        }
+    }
+
+    /**
+     * Returns the last snapshot of the sheet, after recalculating if edits are pending and no other
+     * thread is recalculating. All its values are those of a single recalculation.
+     * @return the snapshot of the whole sheet, never null
+     */
+    Snapshot snapshot() {
+        refresh();
+        return snapshot;
+    }
+
+    /**
+     * @return the number of edits applied to the last snapshot
+     */
+    public long version() {
+        return snapshot.applied();
+    }
+
+    // Recalculates once if edits are pending, unless another thread holds the engine (the next read checks again)
+    private void refresh() {
+        if (snapshot.applied() == submitted.get() || !recalc.tryLock()) return;
+        try {
+            update();
+        } finally {
+            recalc.unlock();
+        }
+    }
+
+    // Applies the pending edits to the engine, recalculates and publishes a snapshot, holding recalc
+    private void update() {
+        long applied = submitted.get(); // every edit counted is in its stripe already
+        if (applied == snapshot.applied()) return;
+        drain();
+        long[] dirty = engine.pendingCells(); // the edited cells and their dependents
+        engine.eval();
+        publish(applied, dirty);
+    }
+
+    // Publishes a snapshot whose regions of the changed cells are copied from the engine, the others are shared
+    private void publish(long applied, long[]... changed) {
+        int size = 1 << REGION_BITS;
+        SheetSnapshot[][] old = snapshot.regions, regions = old.clone();
+        for (long[] cells : changed) {
+            for (long cell : cells) {
+                int regionX = CellRef.x(cell) >> REGION_BITS, regionY = CellRef.y(cell) >> REGION_BITS;
+                if (regions[regionX] == old[regionX]) regions[regionX] = old[regionX].clone();
+                if (regions[regionX][regionY] != old[regionX][regionY]) continue; // already copied
+                regions[regionX][regionY] = SheetSnapshot.of(engine, regionX * size, regionY * size, size, size, applied);
+            }
+        }
+        snapshot = new Snapshot(regions, applied);
+    }
+
+    // Takes the edits of every stripe and applies them to the engine
+    private void drain() {
+        for (Stripe stripe : stripes) {
+            Map<Long, String> edits;
+            stripe.lock.lock();
+            try {
+                if (stripe.edits.isEmpty()) continue;
+                edits = stripe.edits;
+                stripe.edits = new HashMap<>();
+            } finally {
+                stripe.lock.unlock();
+            }
+            edits.forEach((cell, data) -> engine.set((int) (cell >>> 32), (int) (long) cell, data));
+        }
+    }
+
+    /**
+     * An immutable snapshot of the whole sheet, made of a SheetSnapshot per region of cells (null for a
+     * region without data), shared by the snapshots in which it did not change.
+     */
+    static final class Snapshot {
+        private final SheetSnapshot[][] regions; // indexed by x >> REGION_BITS, then y >> REGION_BITS
+        private final long applied;
+
+        private Snapshot(SheetSnapshot[][] regions, long applied) {
+            this.regions = regions;
+            this.applied = applied;
+        }
+
+        /**
+         * @return the number of edits applied to the sheet when the snapshot was taken
+         */
+        long applied() {
+            return applied;
+        }
+
+        /**
+         * @return the snapshot of the region of the cell x,y, null if it is empty
+         */
+        SheetSnapshot region(int x, int y) {
+            return regions[x >> REGION_BITS][y >> REGION_BITS];
+        }
+
+        // The following methods require a cell of the sheet
+
+        String value(int x, int y) {
+            SheetSnapshot region = region(x, y);
+            return region == null ? "" : region.value(x, y);
+        }
+
+        String data(int x, int y) {
+            SheetSnapshot region = region(x, y);
+            return region == null ? "" : region.data(x, y);
+        }
+
+        int type(int x, int y) {
+            SheetSnapshot region = region(x, y);
+            return region == null ? Ex2Utils.TEXT : region.type(x, y);
+        }
+    }
+
+    // A read-only copy of a cell of a snapshot (its order is not kept)
+    private static final class SnapshotCell implements Cell {
+        private final String data;
+        private final int type;
+
+        SnapshotCell(String data, int type) {
+            this.data = data;
+            this.type = type;
+        }
+
+        @Override
+        public String getData() {
+            return data;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public int getOrder() {
+            return 0;
+        }
+
+        @Override
+        public void setData(String s) {
+            throw new UnsupportedOperationException("Snapshot cell, use ConcurrentSheet.set()");
+        }
+
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("Snapshot cell, use ConcurrentSheet.set()");
+        }
+
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("Snapshot cell, use ConcurrentSheet.set()");
+        }
+    }
+}
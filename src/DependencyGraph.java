@@ -0,0 +1,340 @@
+import java.util.Arrays;
+
+/**
+ * Represents the dependencies between the cells of a sheet.
+ * Each cell is identified by an int index, for each cell the graph holds its precedents
+ * (the cells its formula references) and its dependents (the cells whose formula references it).
+ * The graph is updated incrementally, one cell at a time, whenever a cell's formula changes.
+ * A cell may also have active precedents, the subset of its precedents its last evaluation actually read
+ * (e.g., the taken branch of an if): changes of its other precedents do not mark it.
+ * A cell may also depend on the cells within ranges (see Ranges), by a single range edge per range kept
+ * outside of the graph, rather than by an edge per cell within it. Range edges are always active.
+ */
+class DependencyGraph {
+    static final int[] NONE = new int[0];
+    private static final byte WHITE = 0, GRAY = 1, BLACK = 2;
+
+    private int[][] precedents;
+    private int[][] dependents;
+    private int[] dependentCount;
+    private int[][] active; // the sorted active precedents of each cell, null if all its precedents are active
+    private int[] scratch; // in-degrees in topologicalOrder, levels in levels()
+    private Ranges ranges; // the range edges, null if none
+
+    /**
+     * The range edges, kept by the sheet which knows where the cells are: a cell whose formula reads
+     * a range depends on every cell within it.
+     */
+    interface Ranges {
+        /**
+         * @return the cells reading the cell through their ranges, once per range (NONE if none)
+         */
+        int[] dependents(int cell);
+
+        /**
+         * @return the cells within the ranges read by the cell (NONE if none)
+         */
+        int[] precedents(int cell);
+    }
+
+    /**
+     * Constructs an empty graph (no dependencies) over the given number of cells.
+     * @param size the number of cells
+     */
+    DependencyGraph(int size) {
+        precedents = new int[size][];
+        dependents = new int[size][];
+        dependentCount = new int[size];
+        active = new int[size][];
+        scratch = new int[size];
+        Arrays.fill(precedents, NONE);
+        Arrays.fill(dependents, NONE);
+    }
+
+    /**
+     * Sets the range edges of the cells.
+     * @param ranges the range edges, null for none
+     */
+    void setRanges(Ranges ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @return the number of cells in this graph
+     */
+    int size() {
+        return precedents.length;
+    }
+
+    /**
+     * Grows this graph, the new cells have no dependencies.
+     * @param size the new number of cells, not less than size()
+     */
+    void grow(int size) {
+        int old = size();
+        precedents = Arrays.copyOf(precedents, size);
+        dependents = Arrays.copyOf(dependents, size);
+        dependentCount = Arrays.copyOf(dependentCount, size);
+        active = Arrays.copyOf(active, size);
+        scratch = Arrays.copyOf(scratch, size);
+        Arrays.fill(precedents, old, size, NONE);
+        Arrays.fill(dependents, old, size, NONE);
+    }
+
+    /**
+     * Replaces the precedents of a cell, updating the dependents of both the old and the new precedents.
+     * @param cell  the cell index
+     * @param cells the distinct cell indices the cell references
+     */
+    void setPrecedents(int cell, int[] cells) {
+        for (int old : precedents[cell]) {
+            removeDependent(old, cell);
+        }
+        precedents[cell] = cells;
+        active[cell] = null;
+        for (int p : cells) {
+            addDependent(p, cell);
+        }
+    }
+
+    /**
+     * Sets the active precedents of a cell, until its precedents change.
+     * @param cell  the cell index
+     * @param cells the precedents read by the last evaluation of the cell (sorted in place), or null for all
+     */
+    void setActive(int cell, int[] cells) {
+        if (cells != null) Arrays.sort(cells);
+        active[cell] = cells;
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the distinct cells referenced by the cell (must not be modified)
+     */
+    int[] precedents(int cell) {
+        return precedents[cell];
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the distinct cells referenced by the cell, and within its ranges (sorted)
+     */
+    int[] allPrecedents(int cell) {
+        int[] within = ranges == null ? NONE : ranges.precedents(cell);
+        if (within.length == 0) return precedents[cell];
+        int[] all = Arrays.copyOf(precedents[cell], precedents[cell].length + within.length);
+        System.arraycopy(within, 0, all, precedents[cell].length, within.length);
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (distinct == 0 || all[i] != all[distinct - 1]) all[distinct++] = all[i];
+        }
+        return Arrays.copyOf(all, distinct);
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the number of cells referencing the cell
+     */
+    int dependentCount(int cell) {
+        return dependentCount[cell];
+    }
+
+    /**
+     * @param cell the cell index
+     * @param i    the position of the dependent, 0 &lt;= i &lt; dependentCount(cell)
+     * @return the i-th cell referencing the cell
+     */
+    int dependent(int cell, int i) {
+        return dependents[cell][i];
+    }
+
+    /**
+     * Marks a cell and all the cells depending on it, directly or transitively, through active precedents only.
+     * An already marked cell is assumed to have its dependents marked as well, so it is skipped.
+     * @param cell   the cell index
+     * @param marked the marked cells (updated)
+     * @param cells  the list of the marked cells, the newly marked cells are appended to it
+     * @param count  the number of cells in the list
+     * @return the new number of cells in the list
+     */
+    int markDependents(int cell, boolean[] marked, int[] cells, int count) {
+        if (marked[cell]) return count;
+        marked[cell] = true;
+        int head = count;
+        cells[count++] = cell;
+        while (head < count) {
+            int next = cells[head++];
+            for (int i = 0; i < dependentCount[next]; i++) {
+                int dependent = dependents[next][i];
+                if (active[dependent] != null && Arrays.binarySearch(active[dependent], next) < 0) continue;
+                if (!marked[dependent]) {
+                    marked[dependent] = true;
+                    cells[count++] = dependent;
+                }
+            }
+            if (ranges == null) continue;
+            for (int dependent : ranges.dependents(next)) {
+                if (!marked[dependent]) {
+                    marked[dependent] = true;
+                    cells[count++] = dependent;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes a topological order of a subset of the cells using Kahn's algorithm: every cell appears
+     * after all of its precedents in the subset. Cells on a cycle, or depending on a cycle, are left out
+     * of the order. Runs in time linear in the subset size plus the references of its cells and their
+     * range edges.
+     * @param cells  the cells to order
+     * @param count  the number of cells to order
+     * @param member true for every cell in the subset (and only for them)
+     * @param order  an array of at least count entries, filled with the ordered cell indices
+     * @return the number of ordered cells
+     */
+    int topologicalOrder(int[] cells, int count, boolean[] member, int[] order) {
+        int tail = 0;
+        for (int i = 0; i < count; i++) {
+            int cell = cells[i];
+            int degree = 0;
+            for (int p : precedents[cell]) {
+                if (member[p]) degree++;
+            }
+            scratch[cell] = degree;
+        }
+        if (ranges != null) {
+            for (int i = 0; i < count; i++) {
+                for (int dependent : ranges.dependents(cells[i])) {
+                    if (member[dependent]) scratch[dependent]++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (scratch[cells[i]] == 0) order[tail++] = cells[i];
+        }
+        for (int head = 0; head < tail; head++) {
+            int cell = order[head];
+            for (int i = 0; i < dependentCount[cell]; i++) {
+                int dependent = dependents[cell][i];
+                if (member[dependent] && --scratch[dependent] == 0) order[tail++] = dependent;
+            }
+            if (ranges == null) continue;
+            for (int dependent : ranges.dependents(cell)) {
+                if (member[dependent] && --scratch[dependent] == 0) order[tail++] = dependent;
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Groups topologically ordered cells by level: a cell without precedents in the subset is at level 0,
+     * else it is one level above its highest precedent in the subset. Cells of the same level do not
+     * depend on each other, so they can be computed concurrently once the lower levels are done.
+     * @param order   the ordered cells, as computed by topologicalOrder
+     * @param count   the number of ordered cells
+     * @param member  true for every cell in the subset
+     * @param byLevel an array of at least count entries, filled with the cells sorted by level
+     * @return the start of every level in byLevel, followed by count
+     */
+    int[] levels(int[] order, int count, boolean[] member, int[] byLevel) {
+        int levels = 0;
+        for (int i = 0; i < count; i++) {
+            scratch[order[i]] = 0; // the levels pushed by the range edges
+        }
+        for (int i = 0; i < count; i++) {
+            int cell = order[i], level = scratch[cell];
+            for (int p : precedents[cell]) {
+                if (member[p]) level = Math.max(level, scratch[p] + 1);
+            }
+            scratch[cell] = level;
+            levels = Math.max(levels, level + 1);
+            if (ranges == null) continue;
+            for (int dependent : ranges.dependents(cell)) {
+                if (member[dependent]) scratch[dependent] = Math.max(scratch[dependent], level + 1);
+            }
+        }
+        int[] start = new int[levels + 1];
+        for (int i = 0; i < count; i++) {
+            start[scratch[order[i]] + 1]++;
+        }
+        for (int level = 0; level < levels; level++) {
+            start[level + 1] += start[level];
+        }
+        int[] next = Arrays.copyOf(start, levels);
+        for (int i = 0; i < count; i++) {
+            byLevel[next[scratch[order[i]]]++] = order[i];
+        }
+        return start;
+    }
+
+    /**
+     * Computes the dependency depth of every cell with a single depth first search over the precedents
+     * (the cells within its ranges included):
+     * a cell without precedents has depth 0, else its depth is 1 + the max depth of its precedents.
+     * Cells on a cycle, or depending on a cycle, get -1. Each cell and each reference is visited once
+     * (white/gray/black coloring with memoized depths), the search uses an explicit stack.
+     * @return the depth of every cell, indexed by the cell index
+     */
+    int[] depths() {
+        int size = size();
+        int[] depth = new int[size];
+        byte[] color = new byte[size];
+        int[] stack = new int[size];
+        int[] next = new int[size]; // the position of the next precedent to visit, per cell on the stack
+        int[][] all = ranges == null ? precedents : new int[size][]; // the precedents of the cells on the stack
+        for (int root = 0; root < size; root++) {
+            if (color[root] != WHITE) continue;
+            color[root] = GRAY;
+            int top = 0;
+            stack[0] = root;
+            if (all[root] == null) all[root] = allPrecedents(root);
+            while (top >= 0) {
+                int cell = stack[top];
+                if (next[cell] < all[cell].length) {
+                    int p = all[cell][next[cell]++];
+                    if (color[p] == WHITE) {
+                        color[p] = GRAY;
+                        stack[++top] = p;
+                        if (all[p] == null) all[p] = allPrecedents(p);
+                    } else if (color[p] == GRAY) {
+                        depth[cell] = -1; // a back edge, the cell is on a cycle
+                    } else {
+                        depth[cell] = deeper(depth[cell], depth[p]);
+                    }
+                } else {
+                    color[cell] = BLACK;
+                    if (all != precedents) all[cell] = null;
+                    top--;
+                    if (top >= 0) depth[stack[top]] = deeper(depth[stack[top]], depth[cell]);
+                }
+            }
+        }
+        return depth;
+    }
+
+    // The depth of a cell after folding in one of its precedents, -1 (a cycle) is sticky
+    private static int deeper(int depth, int precedentDepth) {
+        if (depth == -1 || precedentDepth == -1) return -1;
+        return Math.max(depth, precedentDepth + 1);
+    }
+
+    private void addDependent(int cell, int dependent) {
+        if (dependentCount[cell] == dependents[cell].length) {
+            dependents[cell] = Arrays.copyOf(dependents[cell], Math.max(4, 2 * dependentCount[cell]));
+        }
+        dependents[cell][dependentCount[cell]++] = dependent;
+    }
+
+    private void removeDependent(int cell, int dependent) {
+        int[] list = dependents[cell];
+        for (int i = 0; i < dependentCount[cell]; i++) {
+            if (list[i] == dependent) {
+                list[i] = list[--dependentCount[cell]];
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A command line batch evaluation of sheet files, for servers (no GUI, it never touches AWT, see Ex2GUI):
+ * every file (in the format of Ex2Sheet.save() or saveBinary()) is loaded into its own sheet, recalculated,
+ * and its computed values are written out. The files are processed concurrently on a pool of threads.
+ * For every file a line with its timing is printed, then a summary of the throughput.
+ *
+ * Output formats:
+ * csv    - the values as CSV, a line per row and a field per column (from A0 to the last non empty cell).
+ * text   - the values in the text format of save(), a line x,y,value per non empty cell (loadable as a sheet).
+ * binary - the cells with their computed values in the binary format (see saveBinary()).
+ *
+ * Usage: java Ex2Batch [-f csv|text|binary] [-o output directory] [-p threads] [-size 9x17]
+ *            [-storage dense|sparse] file...
+ * A binary file is loaded into a sheet of the dimensions stored in it, unless -size is given, a text file
+ * into a sheet of -size (9x17 by default). A file with cells out of its sheet fails, rather than dropping them.
+ * Every file is written to the output directory (the directory of the file by default), named after it
+ * with the extension of the format (.csv, .values.txt or .ex2b).
+ * Output: file,cells,load ms,eval ms,write ms,status - then the summary, and exit status 1 if a file failed.
+ */
+public class Ex2Batch {
+    enum Format {CSV, TEXT, BINARY}
+
+    /**
+     * The outcome of a file: the number of its (non empty) cells, the time of every step in nanoseconds,
+     * and the error which stopped it (null on success).
+     */
+    record Result(String file, int cells, long loadNs, long evalNs, long writeNs, Exception error) {
+        long totalNs() {
+            return loadNs + evalNs + writeNs;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        Format format = Format.CSV;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int width = 0, height = 0; // 0 for the default dimensions, see evaluate()
+        boolean sparse = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                files.add(args[i]);
+                continue;
+            }
+            if (i + 1 == args.length) throw new IllegalArgumentException("Missing value of: " + args[i]);
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "-f" -> format = Format.valueOf(value.toUpperCase());
+                case "-o" -> output = value;
+                case "-p" -> threads = Integer.parseInt(value);
+                case "-storage" -> sparse = parseStorage(value);
+                case "-size" -> {
+                    int[] size = parseSize(value);
+                    width = size[0];
+                    height = size[1];
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java Ex2Batch [-f csv|text|binary] [-o dir] [-p threads] [-size WxH] [-storage dense|sparse] file...");
+            System.exit(2);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (String file : files) {
+            String target = outputName(file, output, format);
+            Format f = format;
+            int w = width, h = height;
+            boolean s = sparse;
+            futures.add(pool.submit(() -> evaluate(file, target, f, w, h, s)));
+        }
+        System.out.println("file,cells,load ms,eval ms,write ms,status");
+        int failed = 0;
+        long cells = 0;
+        for (Future<Result> future : futures) {
+            Result result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause()); // evaluate() catches the errors of a file
+            }
+            System.out.printf("%s,%d,%.1f,%.1f,%.1f,%s%n", result.file(), result.cells(), result.loadNs() / 1e6,
+                    result.evalNs() / 1e6, result.writeNs() / 1e6, result.error() == null ? "ok" : result.error());
+            if (result.error() != null) failed++;
+            cells += result.cells();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        System.out.printf("# %d files (%d failed), %d cells in %.3f s on %d threads: %.1f files/s, %.0f cells/s%n",
+                files.size(), failed, cells, seconds, threads, files.size() / seconds, cells / seconds);
+        if (failed > 0) System.exit(1);
+    }
+
+    /**
+     * Loads a file into a new sheet, recalculates it and writes its values.
+     * @param file   the sheet file (see Ex2Sheet.load())
+     * @param target the file to write the values to
+     * @param width  the number of columns of the sheet, 0 for the width stored in a binary file (else the default)
+     * @param height the number of rows of the sheet, 0 for the height stored in a binary file (else the default)
+     * @return the result of the file, never throws (a file with cells out of the sheet fails)
+     */
+    static Result evaluate(String file, String target, Format format, int width, int height, boolean sparse) {
+        long loadNs = 0, evalNs = 0, writeNs = 0;
+        int cells = 0;
+        try {
+            long t0 = System.nanoTime();
+            if (width <= 0 || height <= 0) {
+                int[] size = Ex2Sheet.binarySize(file);
+                width = size != null ? size[0] : Ex2Utils.WIDTH;
+                height = size != null ? size[1] : Ex2Utils.HEIGHT;
+            }
+            Ex2Sheet sheet = new Ex2Sheet(width, height, sparse);
+            sheet.load(file);
+            if (sheet.skipped() > 0) {
+                throw new IOException(sheet.skipped() + " cells out of the " + width + "x" + height + " sheet, see -size");
+            }
+            long t1 = System.nanoTime();
+            loadNs = t1 - t0;
+            sheet.eval();
+            long t2 = System.nanoTime();
+            evalNs = t2 - t1;
+            cells = switch (format) {
+                case CSV -> writeCsv(sheet, target);
+                case TEXT -> writeValues(sheet, target);
+                case BINARY -> {
+                    sheet.saveBinary(target, true);
+                    yield sheet.nonEmptyCells().length;
+                }
+            };
+            writeNs = System.nanoTime() - t2;
+            return new Result(file, cells, loadNs, evalNs, writeNs, null);
+        } catch (IOException | RuntimeException e) {
+            return new Result(file, cells, loadNs, evalNs, writeNs, e);
+        }
+    }
+
+    /**
+     * Returns the name of the file the values of a sheet file are written to.
+     * @param directory the output directory, null for the directory of the file
+     */
+    static String outputName(String file, String directory, Format format) {
+        File in = new File(file);
+        String name = in.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        name += switch (format) {
+            case CSV -> ".csv";
+            case TEXT -> ".values.txt";
+            case BINARY -> ".ex2b";
+        };
+        String parent = directory != null ? directory : in.getParent();
+        return parent == null ? name : new File(parent, name).getPath();
+    }
+
+    /**
+     * Writes the values of a sheet as CSV, from A0 to the last non empty column and row.
+     * Only the non empty cells are read (see Ex2Sheet.nonEmptyCells()), the other fields are written empty.
+     * @return the number of non empty cells
+     */
+    static int writeCsv(Ex2Sheet sheet, String fileName) throws IOException {
+        long[] cells = sheet.nonEmptyCells();
+        int lastX = -1;
+        for (int i = 0; i < cells.length; i++) {
+            lastX = Math.max(lastX, CellRef.x(cells[i]));
+            cells[i] = CellRef.pack(CellRef.y(cells[i]), CellRef.x(cells[i])); // the row first, to sort by row then column
+        }
+        Arrays.sort(cells);
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of(fileName), StandardCharsets.UTF_8)) {
+            int y = 0, x = 0; // the current row and the number of commas written on it
+            for (long cell : cells) {
+                int cellY = CellRef.x(cell), cellX = CellRef.y(cell);
+                for (; y < cellY; y++, x = 0) {
+                    for (; x < lastX; x++) writer.write(',');
+                    writer.write('\n');
+                }
+                for (; x < cellX; x++) writer.write(',');
+                writer.write(csvField(sheet.value(cellX, cellY)));
+            }
+            if (cells.length > 0) {
+                for (; x < lastX; x++) writer.write(',');
+                writer.write('\n');
+            }
+        }
+        return cells.length;
+    }
+
+    /**
+     * Writes the values of a sheet in the text format of save(), a line x,y,value per non empty cell.
+     * @return the number of non empty cells
+     */
+    static int writeValues(Ex2Sheet sheet, String fileName) throws IOException {
+        long[] cells = sheet.nonEmptyCells();
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of(fileName), StandardCharsets.UTF_8)) {
+            writer.write("\n");
+            for (long cell : cells) {
+                int x = CellRef.x(cell), y = CellRef.y(cell);
+                writer.write(x + "," + y + "," + sheet.value(x, y) + "\n");
+            }
+        }
+        return cells.length;
+    }
+
+    /**
+     * Parses the value of -size, WxH with positive dimensions (e.g., "9x17").
+     * @return the width and the height
+     * @throws IllegalArgumentException if the value is not a valid size
+     */
+    static int[] parseSize(String value) {
+        int x = value.indexOf('x'), width = 0, height = 0;
+        try {
+            if (x > 0) {
+                width = Integer.parseInt(value.substring(0, x));
+                height = Integer.parseInt(value.substring(x + 1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid -size: " + value, e);
+        }
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid -size: " + value);
+        return new int[]{width, height};
+    }
+
+    /**
+     * Parses the value of -storage.
+     * @return true for "sparse", false for "dense"
+     * @throws IllegalArgumentException for any other value
+     */
+    static boolean parseStorage(String value) {
+        if (!value.equals("dense") && !value.equals("sparse")) throw new IllegalArgumentException("Unknown -storage: " + value);
+        return value.equals("sparse");
+    }
+
+    // Quotes a CSV field containing a comma, a quote or a line break (RFC 4180)
+    static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
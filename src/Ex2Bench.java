@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A command line benchmark suite for Ex2 (NOT a Junit class), in the spirit of JMH:
+ * every benchmark runs warmup iterations and then measured iterations of a fixed duration,
+ * and reports the mean time per operation with its standard deviation as CSV, so runs can be
+ * compared (and regressions gated) from the command line.
+ *
+ * Benchmarks:
+ * eval      - a full recalculation of the sheet (every cell invalidated, then eval()).
+ * chain     - set() of the first cell of the sheet and value() of the last one (an edit on a deep chain).
+ * fanin     - set() of one cell and value() of a cell summing a whole column (a wide fan-in).
+ * range     - the same as fanin, with the column summed by a SUM range (an indexed aggregate).
+ * depth     - depth() of the sheet.
+ * setdata   - SCell construction and setData() type detection over numbers, texts and formulas.
+ * cellentry - CellEntry.isValid() over valid and invalid entries.
+ * saveload  - save() of the sheet into a file and load() of the file into a new sheet.
+ * binary    - the same as saveload in the binary format, with the computed values (saveBinary()).
+ * load      - load() of a text file of the sheet into a new sheet, parsed in chunks on the pool (see -p).
+ * Shapes (the sheet used by eval, depth, saveload, binary and load):
+ * constants - every cell is a number.
+ * chain     - one long chain through all the cells, column by column (A1=A0+1, ...).
+ * lattice   - a diamond lattice, every cell reads two cells of the previous row.
+ * dag       - a random DAG, every formula reads 1-3 random cells before it (seeded).
+ * text      - mostly texts (labels, codes, near numbers such as "12abc" or "1e"), one cell in five a number.
+ *
+ * Usage: java [-Dex2.compileThreshold=n] Ex2Bench [-b eval,depth,...] [-s chain,dag,...]
+ *            [-size 26x99] [-w warmups] [-i iterations] [-t ms per iteration] [-seed n]
+ *            [-p threads] [-pt parallel threshold] [-storage dense|sparse]
+ * With -p the sheets are recalculated (and loaded) in parallel on a pool of the given number of threads.
+ * Output: benchmark,shape,cells,ns/op,stddev,cells/s (the throughput, in lines per second for load)
+ */
+public class Ex2Bench {
+    private static final String[] BENCHMARKS = {"eval", "chain", "fanin", "range", "depth", "setdata", "cellentry", "saveload", "binary", "load"};
+    private static final String[] SHAPES = {"constants", "chain", "lattice", "dag", "text"};
+    private static int warmups = 3, iterations = 5, iterationMs = 200;
+    private static int width = 26, height = 99;
+    private static long seed = 42;
+    private static ForkJoinPool pool; // the pool of parallel recalculations, null for sequential ones
+    private static int parallelThreshold = 256;
+    private static boolean sparse; // true to benchmark sparse sheets
+    private static volatile long sink; // consumes the benchmark results, so they are not optimized away
+
+    public static void main(String[] args) throws IOException {
+        List<String> benchmarks = List.of(BENCHMARKS), shapes = List.of(SHAPES);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-b" -> benchmarks = List.of(value.split(","));
+                case "-s" -> shapes = List.of(value.split(","));
+                case "-w" -> warmups = Integer.parseInt(value);
+                case "-i" -> iterations = Integer.parseInt(value);
+                case "-t" -> iterationMs = Integer.parseInt(value);
+                case "-seed" -> seed = Long.parseLong(value);
+                case "-p" -> pool = new ForkJoinPool(Integer.parseInt(value));
+                case "-pt" -> parallelThreshold = Integer.parseInt(value);
+                case "-storage" -> sparse = value.equals("sparse");
+                case "-size" -> {
+                    width = Integer.parseInt(value.substring(0, value.indexOf('x')));
+                    height = Integer.parseInt(value.substring(value.indexOf('x') + 1));
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        System.out.println("benchmark,shape,cells,ns/op,stddev,cells/s");
+        for (String benchmark : benchmarks) {
+            switch (benchmark) {
+                case "setdata", "cellentry" -> run(benchmark, "-", 0, operation(benchmark, null));
+                case "chain" -> run(benchmark, "chain", width * height, operation(benchmark, build("chain")));
+                case "fanin" -> run(benchmark, "fanin", height, operation(benchmark, fanIn(false)));
+                case "range" -> run(benchmark, "fanin", height, operation("fanin", fanIn(true)));
+                default -> {
+                    for (String shape : shapes) {
+                        run(benchmark, shape, width * height, operation(benchmark, build(shape)));
+                    }
+                }
+            }
+        }
+        if (pool != null) pool.shutdown();
+    }
+
+    /**
+     * Returns a single operation of a benchmark.
+     * @param benchmark the benchmark name
+     * @param sheet     the sheet the benchmark runs on (null for benchmarks without a sheet)
+     */
+    private static Runnable operation(String benchmark, Ex2Sheet sheet) throws IOException {
+        switch (benchmark) {
+            case "eval":
+                return () -> {
+                    sheet.invalidate();
+                    sheet.eval();
+                    sink += sheet.value(width - 1, height - 1).length();
+                };
+            case "chain":
+                return () -> {
+                    sheet.set(0, 0, "1");
+                    sink += sheet.value(width - 1, height - 1).length();
+                };
+            case "fanin":
+                return () -> {
+                    sheet.set(0, 0, "1");
+                    sink += sheet.value(1, 0).length();
+                };
+            case "depth":
+                return () -> sink += sheet.depth()[width - 1][height - 1];
+            case "setdata": {
+                String[] data = {"12.5", "-3", "hello world", "=A1+B2*3", "=(A0-2)/C3", "text, with comma", "=1+*2", ""};
+                SCell cell = new SCell("");
+                return () -> {
+                    for (String d : data) {
+                        cell.setData(d);
+                        sink += cell.getType() + new SCell(d).getType();
+                    }
+                };
+            }
+            case "cellentry": {
+                String[] entries = {"A1", "b12", "Z99", "A100", "AA1", "1A", "", "c5"};
+                return () -> {
+                    for (String e : entries) {
+                        if (new CellEntry(e).isValid()) sink++;
+                    }
+                };
+            }
+            case "saveload", "binary": {
+                File file = File.createTempFile("ex2bench", benchmark.equals("binary") ? ".bin" : ".txt");
+                file.deleteOnExit();
+                return () -> {
+                    try {
+                        if (benchmark.equals("binary")) sheet.saveBinary(file.getPath(), true);
+                        else sheet.save(file.getPath());
+                        Ex2Sheet loaded = new Ex2Sheet(width, height, sparse);
+                        loaded.load(file.getPath());
+                        sink += loaded.value(width - 1, height - 1).length();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            }
+            case "load": {
+                File file = File.createTempFile("ex2bench", ".txt");
+                file.deleteOnExit();
+                sheet.save(file.getPath());
+                return () -> {
+                    try {
+                        Ex2Sheet loaded = new Ex2Sheet(width, height, sparse);
+                        if (pool != null) loaded.setParallelism(pool, parallelThreshold);
+                        loaded.load(file.getPath());
+                        sink += loaded.get(width - 1, height - 1).getType();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    /**
+     * Builds (and evaluates) a sheet of the given shape.
+     * @param shape one of SHAPES
+     * @return the new sheet
+     */
+    static Ex2Sheet build(String shape) {
+        Ex2Sheet sheet = new Ex2Sheet(width, height, sparse);
+        if (pool != null) sheet.setParallelism(pool, parallelThreshold);
+        Random random = new Random(seed);
+        for (int col = 0; col < width; col++) {
+            for (int row = 0; row < height; row++) {
+                String data;
+                if (shape.equals("constants") || (col == 0 && row == 0)) {
+                    data = "" + random.nextInt(1000);
+                } else if (shape.equals("chain")) {
+                    data = row > 0 ? "=" + name(col, row - 1) + "+1" : "=" + name(col - 1, height - 1) + "+1";
+                } else if (shape.equals("lattice")) {
+                    data = row > 0 ? "=" + name(col, row - 1) + "+" + name((col + 1) % width, row - 1) : "" + col;
+                } else if (shape.equals("text")) {
+                    String[] texts = {"Total", "N/A", "item " + row, "12abc", "1e", "-", "Q" + col, "x.5", "note, with comma"};
+                    data = random.nextInt(5) == 0 ? "" + random.nextInt(1000) : texts[random.nextInt(texts.length)];
+                } else if (shape.equals("dag")) {
+                    int before = col * height + row, refs = 1 + random.nextInt(3);
+                    StringBuilder formula = new StringBuilder("=1");
+                    for (int r = 0; r < refs; r++) {
+                        int cell = random.nextInt(before);
+                        formula.append(r % 2 == 0 ? '+' : '-').append(name(cell / height, cell % height));
+                    }
+                    data = formula.toString();
+                } else {
+                    throw new IllegalArgumentException("Unknown shape: " + shape);
+                }
+                sheet.set(col, row, data);
+            }
+        }
+        sheet.eval();
+        return sheet;
+    }
+
+    /**
+     * Builds a sheet in which B0 sums the whole first column, checking that it does compute the sum.
+     * @param range true to sum with a SUM range, false with a reference per cell
+     */
+    static Ex2Sheet fanIn(boolean range) {
+        Ex2Sheet sheet = new Ex2Sheet(width, height, sparse);
+        StringBuilder sum = new StringBuilder("=0");
+        for (int row = 0; row < height; row++) {
+            sheet.set(0, row, "" + row);
+            sum.append('+').append(name(0, row));
+        }
+        sheet.set(1, 0, range ? "=SUM(" + name(0, 0) + ":" + name(0, height - 1) + ")" : sum.toString());
+        sheet.eval();
+        String expected = "" + (double) height * (height - 1) / 2;
+        if (!sheet.value(1, 0).equals(expected)) { // e.g., an error would measure the error path instead of the fan-in
+            throw new IllegalStateException("The fan-in sum is " + sheet.value(1, 0) + ", expected " + expected);
+        }
+        return sheet;
+    }
+
+    private static String name(int x, int y) {
+        return CellRef.columnName(x) + y;
+    }
+
+    /**
+     * Runs the warmup and the measured iterations of a benchmark and prints its CSV line.
+     */
+    private static void run(String benchmark, String shape, int cells, Runnable op) {
+        for (int i = 0; i < warmups; i++) {
+            iteration(op);
+        }
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            times[i] = iteration(op);
+        }
+        double mean = Arrays.stream(times).average().orElse(0);
+        double variance = Arrays.stream(times).map(t -> (t - mean) * (t - mean)).sum() / Math.max(1, iterations - 1);
+        System.out.printf("%s,%s,%d,%.1f,%.1f,%.0f%n", benchmark, shape, cells, mean, Math.sqrt(variance), cells * 1e9 / mean);
+    }
+
+    /**
+     * Runs an operation repeatedly for iterationMs milliseconds.
+     * @return the mean time of a single operation in nanoseconds
+     */
+    private static double iteration(Runnable op) {
+        long start = System.nanoTime(), end = start + iterationMs * 1_000_000L, now;
+        long ops = 0;
+        do {
+            op.run();
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return (now - start) / (double) ops;
+    }
+}
@@ -1,6 +1,10 @@
 
 import java.awt.*;
+import java.awt.event.KeyEvent;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * ArielU. Intro2CS, Ex2: https://docs.google.com/document/d/1-18T-dj00apE4k1qmpXGOaqttxLn-Kwi/edit?usp=sharing&ouid=113711744349547563645&rtpof=true&sd=true
@@ -18,52 +22,151 @@ public class Ex2GUI {
 
 	private static Sheet table; // this is the main data (an implementation of the Sheet interface).
 	private static Index2D cord = null; // a table entry used by the GUI of setting up a cell value / form
+	private static final int COLS = (int) ((Ex2Utils.MAX_X - Ex2Utils.GUI_X_SPACE) / Ex2Utils.GUI_X_SPACE); // the visible columns
+	private static final int ROWS = Ex2Utils.HEIGHT; // the visible rows
+	private static final int PREFETCH = 4; // the margin of cells requested around the viewport
+	private static final int SCROLL_DELAY_MS = 80; // the delay between two steps of a held arrow key
+	private static int firstX, firstY; // the top left visible cell (the viewport)
+	private static final int PENDING = Integer.MIN_VALUE; // the type drawn for a cell whose value is being recomputed
+	private static RecalcWorker worker; // recalculates the sheet off the render loop, null until the GUI runs
+	private static SheetSnapshot drawnSnapshot; // the snapshot of the values drawn
+	private static int requestedX = -1, requestedY = -1; // the window of the snapshots requested from the worker
+	private static final Map<Long, Edit> edits = new HashMap<>(); // the edits not applied yet, by packed cell
+	private static boolean editsChanged; // true if an edit was submitted since the last frame
+	private static String[][] shown; // the text drawn in every visible cell, null to repaint them all
+	private static int[][] shownTypes; // the type of every visible cell drawn (its color)
+	private static long lastScroll; // the time of the last step of an arrow key
+	private static boolean dragging; // true while the mouse drags the viewport
+	private static double dragX, dragY; // the position the drag started at
+	private static int dragFirstX, dragFirstY; // the viewport when the drag started
 	public Ex2GUI() {;}  // an empty (redundant) constructor.
 
-	/** The main function for running Ex2 */
+	// An edit submitted to the worker: its sequence number and the new data of the cell
+	private record Edit(long sequence, String data) {}
+
+	/**
+	 * The main function for running Ex2.
+	 * @param a optional: the width and the height of the sheet (e.g., 26 100000), and a file to load
+	 */
 	public static void main(String[] a) {
-		table  = new Ex2Sheet(Ex2Utils.WIDTH ,Ex2Utils.HEIGHT);
+		int width = a.length >= 2 ? Integer.parseInt(a[0]) : Ex2Utils.WIDTH;
+		int height = a.length >= 2 ? Integer.parseInt(a[1]) : Ex2Utils.HEIGHT;
+		table  = new Ex2Sheet(width, height, (long) width * height > 1_000_000); // a big sheet is sparse
+		if (a.length >= 3) load(a[2]);
 		testSimpleGUI(table);
 	}
 
 	/**
-	 * This function runs the main (endlees) loop of the GUI
+	 * This function runs the main (endlees) loop of the GUI.
+	 * The window shows a viewport of COLS x ROWS cells of the sheet, scrolled by the arrow keys (or w/a/s/d),
+	 * Page Up/Down, Home, or by dragging the mouse. Only the viewport (and a small margin) is evaluated and drawn.
+	 * The sheet is recalculated by a RecalcWorker, the loop draws its snapshots and keeps its frame rate during
+	 * long recalculations: the cells being recomputed are drawn as pending (orange) until their values are ready.
 	 * @param table the SpreadSheet - note: this class is written as a naive implementation of "singleton" (i.e., all static).
 	 */
 	public static void testSimpleGUI(Sheet table) {
 		// init parameters
+		Ex2GUI.table = table;
 		StdDrawEx2.setCanvasSize(Ex2Utils.WINDOW_WIDTH, Ex2Utils.WINDOW_HEIGHT);
 		StdDrawEx2.setScale(0, Ex2Utils.MAX_X);
 		StdDrawEx2.setPenRadius(Ex2Utils.PEN_RADIUS);
 		StdDrawEx2.enableDoubleBuffering();
-		table.eval();
+		worker = new RecalcWorker(table); // from now on the sheet is accessed through the worker only
+		worker.execute(Sheet::eval);
+		drawFrame(); // draws the lines, once per viewport: the offscreen canvas keeps them, only the changed cells are repainted.
 		// endless loop (GUI)
 		while (true) {
-			StdDrawEx2.clear(); // clear the GUI (Ex2 window).
-			drawFrame(); // draws the lines.
-			drawCells(); // draws the cells
-			StdDrawEx2.show(); // presents the window.
+			if (scroll()) {
+				drawFrame(); // the headers changed, all the cells are repainted
+			}
+			if (drawCells()) { // repaints the cells which changed since the last frame
+				StdDrawEx2.show(); // presents the window, an idle frame is skipped.
+			}
 			int xx = StdDrawEx2.getXX(); // gets the x coordinate of the mouse click (-1 if none)
 			int yy = StdDrawEx2.getYY(); // gets the y coordinate of the mouse click (-1 if none)
-			inputCell(xx,yy); 			 // if isIn(xx,yy) an input window will be opened to allow the user to edit cell (xx,yy);
+			if (xx >= 0 && xx < COLS && yy >= 0 && yy < ROWS) {
+				inputCell(firstX + xx, firstY + yy); // if isIn(xx,yy) an input window will be opened to allow the user to edit cell (xx,yy);
+			}
+			if (xx != -1 || yy != -1) StdDrawEx2.resetXY(); // a click out of the viewport is dropped
 			StdDrawEx2.pause(Ex2Utils.WAIT_TIME_MS); // waits a few milliseconds - say 30 fps is sufficient.
 		}
 	}
-	public static void save(String fileName){
-		try {
-			table.save(fileName);
+
+	/**
+	 * Moves the viewport by the keys typed (w/a/s/d), the keys held (arrows, Page Up/Down, Home) and the mouse
+	 * being dragged, within the sheet.
+	 * @return true if the viewport moved
+	 */
+	private static boolean scroll() {
+		int x = firstX, y = firstY;
+		while (StdDrawEx2.hasNextKeyTyped()) {
+			switch (StdDrawEx2.nextKeyTyped()) {
+				case 'a' -> x--;
+				case 'd' -> x++;
+				case 'w' -> y--;
+				case 's' -> y++;
+				default -> {}
+			}
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		long now = System.currentTimeMillis();
+		if (now - lastScroll >= SCROLL_DELAY_MS) {
+			int keyX = x, keyY = y;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_LEFT)) x--;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_RIGHT)) x++;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_UP)) y--;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_DOWN)) y++;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_PAGE_UP)) y -= ROWS;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_PAGE_DOWN)) y += ROWS;
+			if (StdDrawEx2.isKeyPressed(KeyEvent.VK_HOME)) x = y = 0;
+			if (x != keyX || y != keyY) lastScroll = now;
 		}
+		if (StdDrawEx2.isMousePressed()) {
+			double mx = StdDrawEx2.mouseX(), my = StdDrawEx2.mouseY();
+			if (!dragging) {
+				dragging = true;
+				dragX = mx;
+				dragY = my;
+				dragFirstX = firstX;
+				dragFirstY = firstY;
+			} else {
+				x = dragFirstX - (int) ((mx - dragX) / Ex2Utils.GUI_X_SPACE); // the cells follow the mouse
+				y = dragFirstY + (int) (my - dragY);
+			}
+		} else {
+			dragging = false;
+		}
+		x = Math.max(0, Math.min(x, table.width() - COLS));
+		y = Math.max(0, Math.min(y, table.height() - ROWS));
+		if (x == firstX && y == firstY) return false;
+		firstX = x;
+		firstY = y;
+		return true;
+	}
+
+	public static void save(String fileName){
+		run(sheet -> {
+			try {
+				sheet.save(fileName);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
 	}
 	public static void load(String fileName){
-		try {
-			table.load(fileName);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		run(sheet -> {
+			try {
+				sheet.load(fileName);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+	// Runs a task on the sheet: by the worker once the GUI runs (the worker owns the sheet), else directly
+	private static void run(Consumer<Sheet> task) {
+		if (worker != null) worker.execute(task);
+		else task.accept(table);
 	}
 	private static Color getColorFromType(int t) {
 		Color ans = Color.GRAY;
@@ -71,49 +174,103 @@ public class Ex2GUI {
 		if(t== Ex2Utils.FORM) {ans=Color.BLUE;}
 		if(t== Ex2Utils.ERR_FORM_FORMAT) {ans=Color.RED;}
 		if(t== Ex2Utils.ERR_CYCLE_FORM) {ans= StdDrawEx2.BOOK_RED;}
+		if(t== PENDING) {ans= StdDrawEx2.ORANGE;}
 		return ans;
 	}
 
 	/**
-	 * Draws the lines of the spreadsheet.
+	 * Clears the window and draws the lines of the spreadsheet with the headers of the viewport:
+	 * the names of its columns and the numbers of its rows. All the cells are repainted by the next drawCells().
 	 */
 	private static void drawFrame() {
+		StdDrawEx2.clear(); // clear the GUI (Ex2 window).
 		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
-		int max_y = table.height();
 		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
 		double y_height = Ex2Utils.GUI_Y_TEXT_START;
-		for (int y = 0; y < max_y; y = y + 1) {
-			double xs = y * x_space;
-			double xc = x_start + y * x_space;
+		for (int y = 0; y < ROWS; y = y + 1) {
 			StdDrawEx2.line(0, y + 1, Ex2Utils.MAX_X, y + 1);
-			StdDrawEx2.line(xs, 0, xs, max_y);
-			int yy = max_y - (y + 1);
-			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			int yy = firstY + ROWS - (y + 1);
+			if (yy < table.height()) StdDrawEx2.text(1, y + y_height, "" + (yy));
+		}
+		for (int x = 0; x <= COLS; x = x + 1) {
+			StdDrawEx2.line(x * x_space, 0, x * x_space, ROWS);
+			if (x < COLS && firstX + x < table.width()) {
+				StdDrawEx2.text(x_start + x * x_space, ROWS + y_height, CellRef.columnName(firstX + x));
+			}
 		}
+		shown = null;
 	}
+
 	/**
-	 * Draws the content of each cell (none empty).
+	 * Draws the content of the visible cells which changed since the last frame (all of them after drawFrame()).
+	 * The values are read from the last snapshot of the worker, requested for the viewport and a margin of
+	 * PREFETCH cells around it, so a scroll within the margin needs no new snapshot. A cell edited but not
+	 * applied yet, pending in the snapshot, or not in the snapshot (yet), is drawn as pending.
+	 * A cell is repainted if its text or its type differs from the drawn one, an idle frame repaints nothing.
+	 * @return true if a cell was repainted
 	 */
-	private static void drawCells() {
-		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
-		int max_y = table.height();
-		int maxx = table.width();
-		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
-		double y_height = Ex2Utils.GUI_Y_TEXT_START;
-		for (int x = 0; x < maxx; x = x + 1) {
-			double xc = x_start + x * x_space;
-			for (int y = 0; y < max_y; y = y + 1) {
-				String w = table.value(x, y);//""+abc[x]+y;
-				Cell cc = table.get(x, y);
-				int t = cc.getType();
-				StdDrawEx2.setPenColor(getColorFromType(t));
-				int max = Math.min(Ex2Utils.MAX_CHARS, w.length());
-				w = w.substring(0, max);
-				double yc = max_y - (y + 1 - y_height);
-				StdDrawEx2.text(xc, yc, w);
+	private static boolean drawCells() {
+		if (requestedX < 0 || firstX < requestedX || firstY < requestedY
+				|| firstX + COLS > requestedX + COLS + 2 * PREFETCH || firstY + ROWS > requestedY + ROWS + 2 * PREFETCH) {
+			requestedX = Math.max(0, firstX - PREFETCH);
+			requestedY = Math.max(0, firstY - PREFETCH);
+			worker.setWindow(requestedX, requestedY, COLS + 2 * PREFETCH, ROWS + 2 * PREFETCH);
+		}
+		SheetSnapshot snapshot = worker.snapshot();
+		if (shown == null) {
+			shown = new String[COLS][ROWS];
+			shownTypes = new int[COLS][ROWS];
+		} else if (snapshot == drawnSnapshot && !editsChanged) {
+			return false;
+		}
+		drawnSnapshot = snapshot;
+		editsChanged = false;
+		edits.values().removeIf(edit -> edit.sequence() <= snapshot.applied());
+		boolean changed = false;
+		for (int x = 0; x < COLS; x = x + 1) {
+			for (int y = 0; y < ROWS; y = y + 1) {
+				int cx = firstX + x, cy = firstY + y;
+				String w = "";
+				int t = table.isIn(cx, cy) ? PENDING : Ex2Utils.TEXT;
+				if (snapshot.covers(cx, cy)) {
+					w = snapshot.value(cx, cy);
+					w = w.substring(0, Math.min(Ex2Utils.MAX_CHARS, w.length()));
+					t = snapshot.isPending(cx, cy) ? PENDING : snapshot.type(cx, cy);
+				}
+				if (!edits.isEmpty() && edits.containsKey(CellRef.pack(cx, cy))) t = PENDING;
+				if (w.equals(shown[x][y]) && t == shownTypes[x][y]) continue;
+				shown[x][y] = w;
+				shownTypes[x][y] = t;
+				drawCell(x, y, w, t);
+				changed = true;
 			}
 		}
+		return changed;
+	}
+
+	/**
+	 * Repaints a single visible cell: erases its rectangle (within the lines of the frame) and draws its text.
+	 * @param x the column of the cell in the viewport
+	 * @param y the row of the cell in the viewport
+	 */
+	private static void drawCell(int x, int y, String w, int t) {
+		int max_y = ROWS;
+		double xc = Ex2Utils.GUI_X_START + x * Ex2Utils.GUI_X_SPACE;
+		double inset = 0.05; // keeps the lines of the frame
+		StdDrawEx2.setPenColor(StdDrawEx2.WHITE);
+		StdDrawEx2.filledRectangle(xc, max_y - y - 0.5, Ex2Utils.GUI_X_SPACE / 2 - inset, 0.5 - inset);
+		StdDrawEx2.setPenColor(getColorFromType(t));
+		StdDrawEx2.text(xc, max_y - (y + 1 - Ex2Utils.GUI_Y_TEXT_START), w);
+	}
+
+	/**
+	 * Erases the line above the sheet showing the cell being edited.
+	 */
+	private static void clearInputLine() {
+		StdDrawEx2.setPenColor(StdDrawEx2.WHITE);
+		StdDrawEx2.filledRectangle(Ex2Utils.MAX_X / 2.0, Ex2Utils.MAX_X - 1, Ex2Utils.MAX_X / 2.0, 0.5);
+		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
+		StdDrawEx2.show();
 	}
 
 	/** input a content into cell(xx,yy) if it is within this SpreadSheet.
@@ -122,11 +279,14 @@ public class Ex2GUI {
 	 * @param yy the y coordinate of the required cell.
 	 */
 	private static void inputCell(int xx, int yy) {
-		if (table.isIn(xx, yy)) {
-			Cell cc = table.get(xx, yy);
+		SheetSnapshot snapshot = worker.snapshot();
+		Edit edit = edits.get(CellRef.pack(xx, yy));
+		if (table.isIn(xx, yy) && (edit != null || snapshot.covers(xx, yy))) { // the data of the cell is known
+			String data = edit != null ? edit.data() : snapshot.data(xx, yy);
 
-			String cellName = (char) ('A' + xx) + String.valueOf(yy );
-			String ww = cellName + ": " + cc.toString() + " : ";
+			String cellName = CellRef.columnName(xx) + String.valueOf(yy );
+			String ww = cellName + ": " + data + " : ";
+			StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
 			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X - 1, ww);
 			StdDrawEx2.show();
 
@@ -134,18 +294,12 @@ public class Ex2GUI {
 				System.out.println(ww);
 			}
 
-			String c = StdDrawEx2.getCell(cellName, cc.getData());
-			String s1 = table.get(xx, yy).getData();
-			if (c == null) {
-				 table.set(xx, yy, s1);
-			} else {
-				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR) {
-					table.get(xx, yy).setType(Ex2Utils.ERR_CYCLE_FORM);
-				}
+			String c = StdDrawEx2.getCell(cellName, data);
+			if (c != null) {
+				edits.put(CellRef.pack(xx, yy), new Edit(worker.submit(xx, yy, c), c)); // recalculated by the worker
+				editsChanged = true;
 			}
-			table.eval();
+			clearInputLine();
 			StdDrawEx2.resetXY();
 		}
 	}
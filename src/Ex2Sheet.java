@@ -1,28 +1,111 @@
 import java.io.*;
-import java.util.HashSet;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Represents a 2D sheet of cells with rows and columns.
  * Provides functionalities to manipulate and evaluate the sheet.
  */
 public class Ex2Sheet implements Sheet {
-    private final SCell[][] table;
+    private static final byte TEXT = 0, NUMBER = 1, COMPUTED = 2, ERR_FORM = 3, ERR_CYCLE = 4;
+    private static final int BINARY_MAGIC = 0x45583242; // "EX2B", the first bytes of a binary file (see saveBinary)
+    private static final short BINARY_VERSION = 1;
+    private static final short BINARY_VALUES = 1; // the flag of a binary file storing the computed values
+    private static final byte BINARY_STRING = 0, BINARY_INTEGER = 1, BINARY_DOUBLE = 2; // how a cell is stored
+    private static final int LOAD_CHUNK = 1 << 20; // the size of the chunks of a text file parsed concurrently by load()
+    private static final int SPARSE_CAPACITY = 16; // the initial number of slots of a sparse sheet
+    private static final SCell EMPTY = new EmptyCell();
+    private static final Signal CYCLE = new Signal("Cycle"); // thrown by a formula reading a cell on a cycle
+    private static final Signal PENDING = new Signal("Pending"); // thrown by a formula reading a dirty cell
     private final int width;
     private final int height;
+    private final CellMap slots; // the slot of every allocated cell of a sparse sheet, null for a dense sheet
+    private SheetCell[] cells; // the cells, indexed by slot (x * height + y in a dense sheet)
+    private long[] keys; // the packed coordinates of every slot, sparse sheets only
+    private int size; // the number of allocated slots
+    private double[] numbers; // the computed numeric values, indexed by slot
+    private byte[] status; // the kind of each computed value (TEXT, NUMBER, ...)
+    private String[] formatted; // the formatted formula results, filled lazily by value()
+    private final DependencyGraph graph; // cell dependencies, cells are identified by their slot
+    private boolean[] dirty; // cells whose value must be recomputed
+    private int[] dirtyCells; // the list of the dirty cells
+    private int dirtyCount;
+    private int[] order; // buffer for the topological order of the dirty cells
+    private ForkJoinPool pool; // the pool of parallel recalculations, null for sequential ones
+    private int parallelThreshold; // the minimal number of cells of a level computed in parallel
+    private int[] byLevel; // buffer for the dirty cells grouped by level (parallel recalculations only)
+    private static final int PARALLEL_GRAIN = 64; // the number of cells computed by a single task
+    private ColumnIndex[] columns; // the indexes of the columns read by ranges, null while no formula reads a range
+    private final RangeWatchers watchers = new RangeWatchers(); // the cells whose formula reads ranges, by column
+    private int[][] columnSlots; // the slots of the allocated cells of every column, sparse sheets only
+    private int[] columnSlotCounts;
+    private boolean settling; // true while the dirty cells left out of the topological order are evaluated
+    private int computing; // the cell evaluated while settling
+    private int pending; // the dirty cell whose read threw PENDING
+    private int[] waitHead, nextWaiter; // the lists of the cells waiting for a dirty cell while settling
+    private SheetProfiler profiler; // the metrics of the cells, null while profiling is disabled
+    private boolean traced; // true while slow evaluations are recorded as JFR events (see SheetEvents)
+    private boolean instrumented; // true while evaluations are timed (profiled or traced)
+    private int skipped; // the cells of the last loaded file out of this sheet, see skipped()
 
     /**
-     * Constructs a new sheet with the specified dimensions.
+     * Constructs a new dense sheet with the specified dimensions.
      * Initializes all cells as empty.
      * @param width  the number of columns in the sheet
      * @param height the number of rows in the sheet
      */
     public Ex2Sheet(int width, int height) {
+        this(width, height, false);
+    }
+
+    /**
+     * Constructs a new sheet with the specified dimensions.
+     * A dense sheet allocates all its cells up front. A sparse sheet only allocates the cells which are
+     * set (or referenced by a formula), looked up by their packed coordinates in a CellMap, so its memory
+     * and the time of save() and of a full recalculation scale with the populated cells, not with width*height.
+     * get() returns a shared, unmodifiable empty cell for the cells of a sparse sheet which were never set.
+     * @param width  the number of columns in the sheet
+     * @param height the number of rows in the sheet
+     * @param sparse true for a sparse sheet
+     */
+    public Ex2Sheet(int width, int height, boolean sparse) {
         this.width = width;
         this.height = height;
-        table = new SCell[width][height];
-        for (int col = 0; col < width; col++) {
-            for (int row = 0; row < height; row++) {
-                table[col][row] = new SCell("");
+        int capacity = sparse ? SPARSE_CAPACITY : width * height;
+        slots = sparse ? new CellMap(capacity) : null;
+        keys = sparse ? new long[capacity] : null;
+        cells = new SheetCell[capacity];
+        numbers = new double[capacity];
+        status = new byte[capacity];
+        formatted = new String[capacity];
+        graph = new DependencyGraph(capacity);
+        graph.setRanges(new RangeEdges());
+        columnSlots = sparse ? new int[0][] : null;
+        columnSlotCounts = sparse ? new int[0] : null;
+        dirty = new boolean[capacity];
+        dirtyCells = new int[capacity];
+        order = new int[capacity];
+        if (!sparse) {
+            size = capacity;
+            for (int slot = 0; slot < size; slot++) {
+                cells[slot] = new SheetCell(slot);
             }
         }
     }
@@ -58,6 +141,8 @@ public class Ex2Sheet implements Sheet {
 
     /**
      * Updates the content of a cell at the specified coordinates.
+     * The cell and all the cells depending on it are marked dirty, they are recomputed
+     * on the next value() or eval().
      * @param x the column index
      * @param y the row index
      * @param c the new content for the cell
@@ -65,19 +150,35 @@ public class Ex2Sheet implements Sheet {
     @Override
     public void set(int x, int y, String c) {
         if (isIn(x, y)) {
-            table[x][y].setData(c);
+            int slot = allocate(x, y); // may grow cells
+            cells[slot].setData(c); // updates the sheet, see SheetCell
         }
     }
 
+    /**
+     * Updates the dependencies of a cell whose data changed and marks it and its dependents dirty.
+     */
+    private void update(int slot) {
+        Formula formula = cells[slot].getFormula();
+        if (formula != null) indexRanges(formula);
+        watchers.set(slot, rangesIn(formula));
+        graph.setPrecedents(slot, precedentsOf(cells[slot]));
+        dirtyCount = graph.markDependents(slot, dirty, dirtyCells, dirtyCount);
+    }
+
     /**
      * Retrieves the cell at the specified coordinates.
      * @param x the column index
      * @param y the row index
-     * @return the cell at the given coordinates, or null if out of bounds
+     * Setting the data of the cell (e.g., get(x, y).setData("5")) updates the sheet as set() does.
+     * @return the cell at the given coordinates (the shared empty cell for a cell of a sparse sheet
+     *         which was never set), or null if out of bounds
      */
     @Override
     public SCell get(int x, int y) {
-        return isIn(x, y) ? table[x][y] : null;
+        if (!isIn(x, y)) return null;
+        int slot = slot(x, y);
+        return slot < 0 ? EMPTY : cells[slot];
     }
 
     /**
@@ -87,8 +188,8 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public SCell get(String entry) {
-        int[] coords = parseEntry(entry);
-        return (coords != null && isIn(coords[0], coords[1])) ? table[coords[0]][coords[1]] : null;
+        long ref = entry == null ? CellRef.INVALID : CellRef.parse(entry, 0, entry.length());
+        return ref != CellRef.INVALID ? get(CellRef.x(ref), CellRef.y(ref)) : null;
     }
 
     /**
@@ -99,7 +200,133 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public String value(int x, int y) {
-        return isIn(x, y) ? table[x][y].evaluate(this, x, y, new HashSet<>()) : "ERR_Cycle!!!";
+        if (!isIn(x, y)) return "ERR_Cycle!!!";
+        int index = slot(x, y);
+        if (profiler != null && index >= 0) profiler.read(index, !dirty[index]);
+        if (dirtyCount > 0) recalculate();
+        return index < 0 ? "" : format(index);
+    }
+
+    /**
+     * Returns the value of a cell as of the last recalculation, without recalculating: the previous value
+     * of a dirty cell (its data if it was never computed). Used to show values while they are recomputed.
+     * @param x the column index
+     * @param y the row index
+     * @return the value of the cell, "" for a cell out of this sheet
+     */
+    String lastValue(int x, int y) {
+        int index = isIn(x, y) ? slot(x, y) : -1;
+        return index < 0 ? "" : format(index);
+    }
+
+    /**
+     * Checks if the value of a cell is out of date, it is recomputed by the next value() or eval().
+     * @param x the column index
+     * @param y the row index
+     * @return true if the cell is dirty
+     */
+    boolean isDirty(int x, int y) {
+        int index = isIn(x, y) ? slot(x, y) : -1;
+        return index >= 0 && dirty[index];
+    }
+
+    /**
+     * Lists the dirty cells, the cells whose value (or error type) changes by the next recalculation.
+     * @return the packed coordinates (see CellRef) of the dirty cells, in no particular order
+     */
+    long[] pendingCells() {
+        long[] refs = new long[dirtyCount];
+        for (int i = 0; i < dirtyCount; i++) {
+            refs[i] = CellRef.pack(slotX(dirtyCells[i]), slotY(dirtyCells[i]));
+        }
+        return refs;
+    }
+
+    /**
+     * Lists the cells with data, in time linear in the allocated cells (the set cells of a sparse sheet).
+     * @return the packed coordinates (see CellRef) of the non empty cells, in no particular order
+     */
+    long[] nonEmptyCells() {
+        long[] refs = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (!cells[slot].getData().isEmpty()) refs[count++] = CellRef.pack(slotX(slot), slotY(slot));
+        }
+        return Arrays.copyOf(refs, count);
+    }
+
+    // Formats the computed value of a cell
+    private String format(int index) {
+        return switch (status[index]) {
+            case TEXT, NUMBER -> cells[index].getData();
+            case COMPUTED -> {
+                if (formatted[index] == null) formatted[index] = String.valueOf(numbers[index]);
+                yield formatted[index];
+            }
+            case ERR_FORM -> "ERR_FORM!!!";
+            default -> "ERR_CYCLE!!!";
+        };
+    }
+
+    /**
+     * Returns the computed numeric value of a cell, without recalculating.
+     * Used by formulas to resolve references, during a recalculation the references
+     * of a cell are computed before the cell itself, unless they are on a (static) cycle with it.
+     * @param x the column index
+     * @param y the row index
+     * @return the computed value of the cell
+     * @throws IllegalArgumentException if the cell is out of this sheet or its value is not a number
+     * @throws Signal                   CYCLE if the cell is on a cycle, PENDING if it is not computed yet
+     */
+    double numberAt(int x, int y) {
+        if (!isIn(x, y)) throw new IllegalArgumentException("Invalid reference: " + x + "," + y);
+        int index = slot(x, y);
+        if (index < 0) throw new IllegalArgumentException("Not a number: " + x + "," + y);
+        if (dirty[index]) {
+            pending = index;
+            throw PENDING;
+        }
+        if (status[index] == ERR_CYCLE) throw CYCLE;
+        if (status[index] != NUMBER && status[index] != COMPUTED) throw new IllegalArgumentException("Not a number: " + x + "," + y);
+        return numbers[index];
+    }
+
+    /**
+     * Adds the aggregates of the computed values of a range to stats, in O(columns * log rows) using the
+     * column indexes. Used by formulas, like numberAt the cells of the range are already computed.
+     * @param range the range, indexed by the set() of its formula
+     * @param stats the aggregates to add to
+     * @throws IllegalArgumentException if the range is not within this sheet or has an error cell
+     * @throws Signal                   CYCLE if the range has a cell on a cycle, PENDING if it has a cell which is not computed yet
+     */
+    void aggregate(Formula.Range range, ColumnIndex.Stats stats) {
+        if (!isIn(range)) throw new IllegalArgumentException("Invalid range: " + range);
+        if (settling) {
+            for (int p : slotsIn(range)) {
+                if (dirty[p]) {
+                    pending = p;
+                    throw PENDING;
+                }
+            }
+        }
+        for (int x = range.x1; x <= range.x2; x++) {
+            columns[x].query(range.y1, range.y2, stats);
+        }
+        if (stats.cycles > 0) throw CYCLE;
+        if (stats.errors > 0) throw new IllegalArgumentException("Error in range: " + range);
+    }
+
+    /**
+     * Shows the optimized form of the formula of a cell, for debugging (e.g., "=($0*$0)/4.0; $0=6.0+A1"
+     * for "=(2*3+A1)*(2*3+A1)/4", see Formula.toString()).
+     * @param x the column index
+     * @param y the row index
+     * @return the optimized formula, the data of a cell which is not a valid formula, or null if out of bounds
+     */
+    public String optimized(int x, int y) {
+        SCell cell = get(x, y);
+        if (cell == null) return null;
+        return cell.getFormula() == null ? cell.getData() : cell.getFormula().toString();
     }
 
     /**
@@ -115,89 +342,585 @@ public class Ex2Sheet implements Sheet {
 
     /**
      * Evaluates all cells in the sheet.
+     * Only the dirty cells (changed since the last evaluation, or depending on a changed cell)
+     * are recomputed, the other values are up to date.
      */
     @Override
     public void eval() {
-        for (int col = 0; col < width; col++) {
-            for (int row = 0; row < height; row++) {
-                value(col, row);
+        if (dirtyCount > 0) recalculate();
+    }
+
+    /**
+     * Enables parallel recalculation: the dirty cells are grouped by dependency level (cells of the
+     * same level do not depend on each other) and every level of at least threshold cells is computed
+     * concurrently on the pool, a level starts only once the previous one is done. Smaller levels, and
+     * recalculations of less than threshold cells, are computed sequentially on the calling thread.
+     * @param pool      the pool to compute on, null for sequential recalculations (the default)
+     * @param threshold the minimal number of cells computed in parallel
+     */
+    public void setParallelism(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.parallelThreshold = Math.max(1, threshold);
+        if (pool != null && byLevel == null) byLevel = new int[order.length];
+    }
+
+    /**
+     * Enables (or disables) the profiling of the cells: for every cell, the number of its evaluations with
+     * their cumulative and max duration, and the number of reads of its value by value() which were up to
+     * date (hits) or had to be recomputed (misses). Enabling starts from empty metrics. When disabled,
+     * the only cost of profiling is a single null check per evaluated cell.
+     * @param enabled true to record metrics, false to stop and drop them
+     */
+    public void setProfiling(boolean enabled) {
+        profiler = enabled ? new SheetProfiler(cells.length) : null;
+    }
+
+    /**
+     * Reports the most expensive cells since profiling was enabled.
+     * @param n the max number of cells to report
+     * @return the metrics of the recorded cells with the highest cumulative evaluation time, most expensive first
+     *         (empty if profiling is disabled)
+     */
+    public List<CellProfile> profile(int n) {
+        List<CellProfile> report = new ArrayList<>();
+        if (profiler == null) return report;
+        List<Integer> recorded = new ArrayList<>();
+        for (int slot = 0; slot < size; slot++) {
+            if (profiler.isRecorded(slot)) recorded.add(slot);
+        }
+        recorded.sort(Comparator.comparingLong((Integer slot) -> profiler.totalNanos(slot)).reversed());
+        int[] depth = graph.depths();
+        for (int slot : recorded.subList(0, Math.min(n, recorded.size()))) {
+            List<String> precedents = new ArrayList<>();
+            for (int p : graph.allPrecedents(slot)) {
+                precedents.add(cellName(p));
+            }
+            report.add(new CellProfile(cellName(slot), profiler.evaluations(slot), profiler.totalNanos(slot),
+                    profiler.maxNanos(slot), profiler.hits(slot), profiler.misses(slot), depth[slot], precedents));
+        }
+        return report;
+    }
+
+    /**
+     * Exports the metrics of all the recorded cells to a CSV file, most expensive first (see CellProfile.toCsv()).
+     * @param fileName the name of the file to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void exportProfile(String fileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write(CellProfile.CSV_HEADER + "\n");
+            for (CellProfile cell : profile(Integer.MAX_VALUE)) {
+                writer.write(cell.toCsv() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Marks every cell which is not a constant dirty, the next value() or eval() recomputes the whole sheet.
+     * Constants (numbers, texts, invalid formulas and formulas reading no cell) keep their value, which
+     * only changes when they are set.
+     */
+    void invalidate() {
+        for (int index = 0; index < size; index++) {
+            Formula formula = cells[index].getFormula();
+            if (formula == null || formula.isConstant()) continue;
+            if (!dirty[index]) {
+                dirty[index] = true;
+                dirtyCells[dirtyCount++] = index;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the dirty cells in topological order of the dependency graph, so every formula
+     * only reads up to date values. Dirty cells left out of the order reference a cycle, they are
+     * settled by settle(). Runs in time linear in the number of dirty cells plus their references.
+     */
+    private void recalculate() {
+        SheetEvents.Recalc event = SheetEvents.Recalc.start();
+        traced = SheetEvents.CELL_EVALUATE.isEnabled();
+        instrumented = traced || profiler != null;
+        int count = graph.topologicalOrder(dirtyCells, dirtyCount, dirty, order);
+        if (pool == null || count < parallelThreshold) {
+            for (int i = 0; i < count; i++) {
+                recompute(order[i]);
+                reindex(order[i]);
+            }
+        } else {
+            int[] start = graph.levels(order, count, dirty, byLevel);
+            for (int level = 0; level + 1 < start.length; level++) {
+                if (start[level + 1] - start[level] >= parallelThreshold) {
+                    pool.invoke(new RecomputeTask(start[level], start[level + 1]));
+                } else {
+                    for (int i = start[level]; i < start[level + 1]; i++) {
+                        recompute(byLevel[i]);
+                    }
+                }
+                for (int i = start[level]; i < start[level + 1]; i++) {
+                    reindex(byLevel[i]); // the column indexes are not thread safe, they are updated between levels
+                }
             }
         }
+        int cycles = count < dirtyCount ? settle() : 0;
+        if (event != null && event.shouldCommit()) {
+            event.cells = dirtyCount;
+            event.cycles = cycles;
+            event.commit();
+        }
+        dirtyCount = 0;
+    }
+
+    /**
+     * Evaluates the dirty cells left out of the topological order: a formula referencing a cycle may not
+     * read it (e.g., the untaken branch of an if). Every such cell is evaluated, a cell reading a dirty cell
+     * waits for it and is evaluated again once that cell is done. The cells still dirty when no cell can
+     * progress do read a cycle, they are marked as ERR_CYCLE_FORM.
+     * @return the number of cells marked as ERR_CYCLE_FORM
+     */
+    private int settle() {
+        if (waitHead == null || waitHead.length < cells.length) {
+            waitHead = new int[cells.length];
+            nextWaiter = new int[cells.length];
+            Arrays.fill(waitHead, -1);
+        }
+        int capacity = order.length, head = 0, queued = 0; // order is reused as a circular queue
+        for (int i = 0; i < dirtyCount; i++) {
+            if (dirty[dirtyCells[i]]) order[queued++] = dirtyCells[i];
+        }
+        settling = true;
+        while (queued > 0) {
+            int index = order[head];
+            head = (head + 1) % capacity;
+            queued--;
+            computing = index;
+            if (!compute(index)) {
+                nextWaiter[index] = waitHead[pending];
+                waitHead[pending] = index;
+                continue;
+            }
+            dirty[index] = false;
+            reindex(index);
+            for (int waiter = waitHead[index]; waiter >= 0; waiter = nextWaiter[waiter]) {
+                order[(head + queued++) % capacity] = waiter;
+            }
+            waitHead[index] = -1;
+        }
+        settling = false;
+        int cycles = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            int index = dirtyCells[i];
+            if (dirty[index]) {
+                cycles++;
+                cells[index].setType(SCell.ERR_CYCLE_FORM);
+                status[index] = ERR_CYCLE;
+                dirty[index] = false;
+                waitHead[index] = -1;
+                reindex(index);
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Computes a dirty cell and marks it clean.
+     */
+    private void recompute(int index) {
+        compute(index);
+        dirty[index] = false;
+    }
+
+    /**
+     * Recomputes the cells byLevel[from..to) of a single level, splitting the range between the pool threads.
+     */
+    private final class RecomputeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        RecomputeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_GRAIN) {
+                for (int i = from; i < to; i++) {
+                    recompute(byLevel[i]);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RecomputeTask(from, middle), new RecomputeTask(middle, to));
+            }
+        }
+    }
+
+    /**
+     * Computes the value and the status of a single cell (see evaluate), timed if profiling is enabled,
+     * and recorded as a CellEvaluate event if a JFR recording enables them and the evaluation is slow.
+     * @return false if the formula read a dirty cell (see pending), the cell is left as is
+     */
+    private boolean compute(int index) {
+        if (!instrumented) return evaluate(index);
+        SheetEvents.CellEvaluate event = traced ? new SheetEvents.CellEvaluate() : null;
+        if (event != null) event.begin();
+        long start = System.nanoTime();
+        boolean done = evaluate(index);
+        if (profiler != null) profiler.evaluated(index, System.nanoTime() - start);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.x = slotX(index);
+                event.y = slotY(index);
+                event.formula = cells[index].getData();
+                event.commit();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Computes the value and the status of a single cell, the precedents it reads must be up to date.
+     * A formula error changes the type of the cell to ERR_WRONG_FORM (or ERR_CYCLE_FORM).
+     * The precedents read by a formula with an if become its active precedents.
+     * @return false if the formula read a dirty cell (see pending), the cell is left as is
+     */
+    private boolean evaluate(int index) {
+        SCell cell = cells[index];
+        cell.resetType();
+        formatted[index] = null;
+        switch (cell.getType()) {
+            case SCell.TEXT -> status[index] = TEXT;
+            case SCell.NUMBER -> {
+                numbers[index] = cell.evaluate(this);
+                status[index] = NUMBER;
+            }
+            case SCell.FORM -> {
+                try {
+                    numbers[index] = cell.evaluate(this);
+                    status[index] = COMPUTED;
+                } catch (Signal signal) {
+                    if (signal == PENDING) return false;
+                    cell.setType(SCell.ERR_CYCLE_FORM);
+                    status[index] = ERR_CYCLE;
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    cell.setType(SCell.ERR_WRONG_FORM);
+                    status[index] = ERR_FORM;
+                }
+                Formula formula = cell.getFormula();
+                if (formula.isConditional()) graph.setActive(index, activePrecedents(index, formula));
+            }
+            default -> status[index] = ERR_FORM;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the precedents read by the last evaluation of a formula.
+     * @return the slots of the cells read, or null if all the precedents were read
+     */
+    private int[] activePrecedents(int index, Formula formula) {
+        int[] precedents = graph.precedents(index);
+        int[] read = new int[precedents.length];
+        int count = 0;
+        for (int p : precedents) {
+            if (formula.lastRead(slotX(p), slotY(p))) read[count++] = p;
+        }
+        return count == precedents.length ? null : Arrays.copyOf(read, count);
+    }
+
+    /**
+     * A preallocated exception without stack trace, signalling why a formula could not read a cell.
+     * It is control flow, so it is neither filled with a stack trace nor given suppressed exceptions.
+     */
+    static final class Signal extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Signal(String message) {
+            super(message, null, false, false); // no suppression, no writable stack trace
+        }
+    }
+
+    /**
+     * Creates the indexes of the columns read by the ranges of a formula, filled with the current values
+     * of their cells. An index covers all the rows of its column, it is kept up to date by reindex() and
+     * never dropped.
+     */
+    private void indexRanges(Formula formula) {
+        for (Formula.Range range : formula.ranges()) {
+            if (!isIn(range)) continue;
+            if (columns == null || columns.length <= range.x2) {
+                columns = Arrays.copyOf(columns == null ? new ColumnIndex[0] : columns, range.x2 + 1);
+            }
+            for (int x = range.x1; x <= range.x2; x++) {
+                if (columns[x] != null) continue;
+                columns[x] = new ColumnIndex(height);
+                if (slots == null) {
+                    for (int y = 0; y < height; y++) {
+                        reindex(x * height + y);
+                    }
+                } else if (x < columnSlots.length) {
+                    for (int i = 0; i < columnSlotCounts[x]; i++) {
+                        reindex(columnSlots[x][i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the value of a cell in the index of its column (if its column is indexed).
+     */
+    private void reindex(int slot) {
+        if (columns == null) return;
+        int x = slotX(slot), y = slotY(slot);
+        if (x >= columns.length || columns[x] == null) return;
+        byte kind = switch (status[slot]) {
+            case NUMBER, COMPUTED -> ColumnIndex.VALUE;
+            case TEXT -> ColumnIndex.NONE;
+            case ERR_CYCLE -> ColumnIndex.CYCLE;
+            default -> ColumnIndex.ERROR;
+        };
+        columns[x].update(y, kind, numbers[slot]);
+    }
+
+    /**
+     * @return the ranges within this sheet read by a formula (none for null), watched for the changes of their cells
+     */
+    private Formula.Range[] rangesIn(Formula formula) {
+        if (formula == null || formula.ranges().length == 0) return RangeWatchers.NO_RANGES;
+        Formula.Range[] ranges = new Formula.Range[formula.ranges().length];
+        int count = 0;
+        for (Formula.Range range : formula.ranges()) {
+            if (isIn(range)) ranges[count++] = range;
+        }
+        return count == ranges.length ? ranges : Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * Finds the allocated cells within a range: all its cells in a dense sheet, the cells of its columns
+     * (looked up directly) within its rows in a sparse sheet.
+     * @return the slots of the cells
+     */
+    private int[] slotsIn(Formula.Range range) {
+        if (slots == null) {
+            int[] found = new int[(range.x2 - range.x1 + 1) * (range.y2 - range.y1 + 1)];
+            int count = 0;
+            for (int x = range.x1; x <= range.x2; x++) {
+                for (int y = range.y1; y <= range.y2; y++) {
+                    found[count++] = x * height + y;
+                }
+            }
+            return found;
+        }
+        int[] found = DependencyGraph.NONE;
+        int count = 0;
+        for (int x = range.x1; x <= range.x2 && x < columnSlots.length; x++) {
+            for (int i = 0; i < columnSlotCounts[x]; i++) {
+                int slot = columnSlots[x][i], y = CellRef.y(keys[slot]);
+                if (y < range.y1 || y > range.y2) continue;
+                if (count == found.length) found = Arrays.copyOf(found, Math.max(4, 2 * count));
+                found[count++] = slot;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // The range edges of the dependency graph: a formula reading a range depends on all the cells within it
+    private final class RangeEdges implements DependencyGraph.Ranges {
+        @Override
+        public int[] dependents(int cell) {
+            return watchers.isEmpty() ? DependencyGraph.NONE : watchers.watchers(slotX(cell), slotY(cell));
+        }
+
+        @Override
+        public int[] precedents(int cell) {
+            Formula.Range[] ranges = watchers.ranges(cell);
+            if (ranges.length == 1) return slotsIn(ranges[0]);
+            int[] within = DependencyGraph.NONE;
+            for (Formula.Range range : ranges) {
+                int[] slots = slotsIn(range);
+                int count = within.length;
+                within = Arrays.copyOf(within, count + slots.length);
+                System.arraycopy(slots, 0, within, count, slots.length);
+            }
+            return within;
+        }
+    }
+
+    /**
+     * Checks if a range is within this sheet.
+     */
+    private boolean isIn(Formula.Range range) {
+        return isIn(range.x1, range.y1) && isIn(range.x2, range.y2);
     }
 
     /**
      * Computes the depth of dependencies for each cell in the sheet.
+     * Cells on a cycle, or depending on one, get -1. Runs in O(cells + references).
      * @return a 2D array of dependency depths
      */
     @Override
     public int[][] depth() {
+        int[] depth = graph.depths();
         int[][] depths = new int[width][height];
-        for (int col = 0; col < width; col++) {
-            for (int row = 0; row < height; row++) {
-                depths[col][row] = computeDepth(col, row, new boolean[width][height]);
+        if (slots == null) {
+            for (int col = 0; col < width; col++) {
+                System.arraycopy(depth, col * height, depths[col], 0, height);
+            }
+        } else {
+            for (int slot = 0; slot < size; slot++) {
+                depths[slotX(slot)][slotY(slot)] = depth[slot];
             }
         }
         return depths;
     }
 
     /**
-     * Recursively computes the dependency depth for a specific cell.
-     * @param x       the column index
-     * @param y       the row index
-     * @param visited tracks visited cells to prevent infinite loops
-     * @return the depth of the cell's dependencies, or -1 if a cycle is detected
+     * Finds the distinct cells referenced by a formula cell (none for any other type). The cells within
+     * its ranges are range edges (see RangeEdges), not precedents.
+     * @param cell the cell to scan
+     * @return the slots of the referenced cells within this sheet (allocated if needed)
      */
-    private int computeDepth(int x, int y, boolean[][] visited) {
-        if (!isIn(x, y) || visited[x][y]) return -1;
-        visited[x][y] = true;
+    private int[] precedentsOf(SCell cell) {
+        Formula formula = cell.getFormula();
+        if (formula == null) return DependencyGraph.NONE;
+        int[] indices = new int[formula.references().length];
+        int count = 0;
+        for (Formula.Ref ref : formula.references()) {
+            if (isIn(ref.x, ref.y)) indices[count++] = allocate(ref.x, ref.y);
+        }
+        Arrays.sort(indices, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || indices[i] != indices[distinct - 1]) indices[distinct++] = indices[i];
+        }
+        return Arrays.copyOf(indices, distinct);
+    }
 
-        SCell cell = table[x][y];
-        if (cell.getType() != SCell.FORM) return 0;
+    /**
+     * @return the name of the cell of a slot (e.g., "B3")
+     */
+    private String cellName(int slot) {
+        return CellRef.columnName(slotX(slot)) + slotY(slot);
+    }
 
-        String formula = cell.getData().substring(1);
-        int maxDepth = 0;
+    /**
+     * Maps the x,y coordinates to the slot of the cell, which identifies it in the dependency graph
+     * and in the value arrays.
+     * @return the slot, or -1 for a cell of a sparse sheet which was never allocated
+     */
+    private int slot(int x, int y) {
+        return slots == null ? x * height + y : slots.get(CellRef.pack(x, y));
+    }
 
-        for (String ref : parse(formula)) {
-            int[] coords = parseEntry(ref);
-            if (coords != null) {
-                maxDepth = Math.max(maxDepth, 1 + computeDepth(coords[0], coords[1], visited));
-            }
-        }
+    /**
+     * @return the x coordinate of the cell of a slot
+     */
+    private int slotX(int slot) {
+        return slots == null ? slot / height : CellRef.x(keys[slot]);
+    }
 
-        visited[x][y] = false;
-        return maxDepth;
+    /**
+     * @return the y coordinate of the cell of a slot
+     */
+    private int slotY(int slot) {
+        return slots == null ? slot % height : CellRef.y(keys[slot]);
     }
 
     /**
-     * Splits a formula into individual cell references.
-     *
-     * @param formula the formula to parse
-     * @return an array of cell references
+     * Returns the slot of the x,y cell, allocating an empty cell for it in a sparse sheet if needed.
+     * A new cell is listed in its column, a formula reading a range finds it there (see slotsIn()).
      */
-    private String[] parse(String formula) {
-        return formula.split("[^A-Za-z0-9]");
+    private int allocate(int x, int y) {
+        int slot = slot(x, y);
+        if (slot >= 0) return slot;
+        if (size == cells.length) grow(2 * size);
+        slot = size++;
+        keys[slot] = CellRef.pack(x, y);
+        slots.put(keys[slot], slot);
+        cells[slot] = new SheetCell(slot);
+        if (x >= columnSlots.length) {
+            int capacity = Math.max(x + 1, 2 * columnSlots.length);
+            columnSlots = Arrays.copyOf(columnSlots, capacity);
+            columnSlotCounts = Arrays.copyOf(columnSlotCounts, capacity);
+        }
+        if (columnSlots[x] == null || columnSlotCounts[x] == columnSlots[x].length) {
+            columnSlots[x] = Arrays.copyOf(columnSlots[x] == null ? DependencyGraph.NONE : columnSlots[x], Math.max(4, 2 * columnSlotCounts[x]));
+        }
+        columnSlots[x][columnSlotCounts[x]++] = slot;
+        return slot;
+    }
+
+    // Grows the slot arrays of a sparse sheet
+    private void grow(int capacity) {
+        cells = Arrays.copyOf(cells, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        status = Arrays.copyOf(status, capacity);
+        formatted = Arrays.copyOf(formatted, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        dirtyCells = Arrays.copyOf(dirtyCells, capacity);
+        order = Arrays.copyOf(order, capacity);
+        if (byLevel != null) byLevel = Arrays.copyOf(byLevel, capacity);
+        if (profiler != null) profiler.grow(capacity);
+        graph.grow(capacity);
+    }
+
+    // A cell of this sheet, setting its data through the Cell interface (e.g., get(x, y).setData()) updates the
+    // dependencies and marks the dependents dirty, as set() does
+    private final class SheetCell extends SCell {
+        private final int slot;
+
+        SheetCell(int slot) {
+            super("");
+            this.slot = slot;
+        }
+
+        @Override
+        public void setData(String data) {
+            assign(data);
+            update(slot);
+        }
+
+        // Sets the data without updating the sheet, the caller updates it
+        void assign(String data) {
+            super.setData(data);
+        }
+    }
+
+    // The cell returned by get() for the cells of a sparse sheet which were never set, use set() to fill them
+    private static final class EmptyCell extends SCell {
+        EmptyCell() {
+            super("");
+        }
+
+        @Override
+        public void setData(String data) {
+            throw new UnsupportedOperationException("Empty cell, use Ex2Sheet.set()");
+        }
+
+        @Override
+        public void setType(int type) {
+            throw new UnsupportedOperationException("Empty cell, use Ex2Sheet.set()");
+        }
+
+        @Override
+        public void setOrder(int order) {
+            throw new UnsupportedOperationException("Empty cell, use Ex2Sheet.set()");
+        }
     }
 
     /**
-     * Parses a string entry (e.g., "A1") into column and row coordinates.
+     * Parses a string entry (e.g., "A1", "AB1234") into column and row coordinates.
+     * The column is a name of letters (A-Z, AA-ZZ, ...), the row is its number as is.
      *
      * @param entry the string representation of a cell
      * @return an array with column and row indices, or null if invalid
      */
     public int[] parseEntry(String entry) {
-        if (entry == null || entry.length() < 2) return null;
-
-        char column = Character.toUpperCase(entry.charAt(0));
-        String rowPart = entry.substring(1);
-
-        try {
-            int row = Integer.parseInt(rowPart);
-            int col = column - 'A';
-            if (col < 0 || col >= width || row < 0 || row >= height) return null;
-            return new int[]{col, row};
-        } catch (NumberFormatException e) {
-            return null;
-        }
+        long ref = entry == null ? CellRef.INVALID : CellRef.parse(entry, 0, entry.length());
+        if (ref == CellRef.INVALID || !isIn(CellRef.x(ref), CellRef.y(ref))) return null;
+        return new int[]{CellRef.x(ref), CellRef.y(ref)};
     }
 
     /**
@@ -207,41 +930,362 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public void save(String fileName) throws IOException {
+        SheetEvents.Save event = SheetEvents.Save.start();
+        int saved = 0;
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
             writer.write("\n");
-            for (int col = 0; col < width; col++) {
-                for (int row = 0; row < height; row++) {
-                    String data = table[col][row].getData();
-                    if (!data.isEmpty()) {
-                        writer.write(col + "," + row + "," + data + "\n");
-                    }
+            for (int slot = 0; slot < size; slot++) {
+                String data = cells[slot].getData();
+                if (!data.isEmpty()) {
+                    writer.write(slotX(slot) + "," + slotY(slot) + "," + data + "\n");
+                    saved++;
                 }
             }
         }
+        if (event != null) event.commit(fileName, saved);
     }
 
     /**
-     * Loads the sheet's content from a file.
+     * Saves the sheet's content to a file in the binary format, which load() reads as well. A text file is
+     * converted to the binary format by load() and saveBinary(), and back by load() and save().
+     * The file (big endian) is made of:
+     * a header - the magic "EX2B", the version (short), the flags (short, BINARY_VALUES), width and height (int),
+     * a string table - the number of strings (int), then every string as its length (int) and its UTF-8 bytes,
+     * the cells - their number (int), then every cell as x and y (int), its kind (byte, see BINARY_STRING)
+     * followed by a raw double or by the index of its data in the string table (int),
+     * the values (with BINARY_VALUES only) - the status (byte) and the value (double) of every cell.
+     * Numbers are stored as raw doubles when their data is the canonical form of their value (e.g., "5", "2.5"),
+     * so loading them does not parse them. Formulas are stored as their data and parsed again when loaded.
+     * @param fileName the name of the file to save to
+     * @param values   true to store the computed values as well, so a sheet loading the file into an empty
+     *                 sheet needs no recalculation
+     * @throws IOException if an I/O error occurs
+     */
+    public void saveBinary(String fileName, boolean values) throws IOException {
+        SheetEvents.Save event = SheetEvents.Save.start();
+        if (values && dirtyCount > 0) recalculate();
+        int count = 0;
+        int[] saved = new int[size];
+        byte[] kinds = new byte[size];
+        int[] strings = new int[size];
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (int slot = 0; slot < size; slot++) {
+            SCell cell = cells[slot];
+            String data = cell.getData();
+            if (data.isEmpty()) continue;
+            saved[count] = slot;
+            kinds[count] = binaryKind(cell);
+            if (kinds[count] == BINARY_STRING) {
+                Integer index = table.putIfAbsent(data, table.size());
+                strings[count] = index == null ? table.size() - 1 : index;
+            }
+            count++;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeShort(BINARY_VERSION);
+            out.writeShort(values ? BINARY_VALUES : 0);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(table.size());
+            for (String data : table.keySet()) {
+                byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                int slot = saved[i];
+                out.writeInt(slotX(slot));
+                out.writeInt(slotY(slot));
+                out.writeByte(kinds[i]);
+                if (kinds[i] == BINARY_STRING) out.writeInt(strings[i]);
+                else out.writeDouble(cells[slot].evaluate(this));
+            }
+            if (values) {
+                for (int i = 0; i < count; i++) {
+                    out.writeByte(status[saved[i]]);
+                    out.writeDouble(numbers[saved[i]]);
+                }
+            }
+        }
+        if (event != null) event.commit(fileName, count);
+    }
+
+    /**
+     * Returns how a cell is stored in the binary format: BINARY_INTEGER or BINARY_DOUBLE for a number whose
+     * data is restored from its value, BINARY_STRING otherwise.
+     */
+    private static byte binaryKind(SCell cell) {
+        if (cell.getFormula() != null || cell.getType() != SCell.NUMBER) return BINARY_STRING;
+        String data = cell.getData();
+        double number = cell.evaluate(null);
+        if (number == (long) number && Math.abs(number) < 1L << 53 && data.equals(Long.toString((long) number))) {
+            return BINARY_INTEGER;
+        }
+        return data.equals(Double.toString(number)) ? BINARY_DOUBLE : BINARY_STRING;
+    }
+
+    /**
+     * Loads the sheet's content from a file, either a text file (see Sheet.save()) or a binary file
+     * (see saveBinary()).
      * @param fileName the name of the file to load from
      * @throws IOException if an I/O error occurs
      */
     @Override
     public void load(String fileName) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            reader.readLine(); // Skip the first empty line
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",", 3);
-                if (parts.length >= 3) {
-                    try {
-                        int x = Integer.parseInt(parts[0]);
-                        int y = Integer.parseInt(parts[1]);
-                        set(x, y, parts[2]);
-                    } catch (NumberFormatException e) {
-                        // Ignore invalid lines
+        SheetEvents.Load event = SheetEvents.Load.start();
+        skipped = 0;
+        int loaded = isBinary(fileName) ? loadBinary(fileName) : loadText(fileName, LOAD_CHUNK);
+        if (event != null) event.commit(fileName, loaded);
+    }
+
+    /**
+     * Loads a text file, skipping its first line and the invalid lines (see Sheet.load()).
+     * The file is split into chunks of whole lines, parsed concurrently into cells (the type detection and
+     * the parsing of their formulas) on the pool of the sheet (see setParallelism(), the common pool if
+     * none), then the cells are inserted in the order of the file. A file of a single chunk is parsed on
+     * the calling thread.
+     * @param chunkBytes the (approximate) size of a chunk
+     * @return the number of cells loaded
+     * @throws IOException if an I/O error occurs
+     */
+    int loadText(String fileName, int chunkBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            List<Callable<LoadedChunk>> tasks = new ArrayList<>();
+            for (long from = 0, to; from < fileSize; from = to) {
+                to = lineEnd(channel, Math.min(fileSize, from + chunkBytes), fileSize);
+                long start = from, length = to - from;
+                tasks.add(() -> LoadedChunk.parse(channel, start, (int) length, start == 0));
+            }
+            List<LoadedChunk> chunks = new ArrayList<>();
+            if (tasks.size() == 1) {
+                chunks.add(LoadedChunk.parse(channel, 0, (int) fileSize, true));
+            } else if (tasks.size() > 1) {
+                for (Future<LoadedChunk> chunk : (pool != null ? pool : ForkJoinPool.commonPool()).invokeAll(tasks)) {
+                    chunks.add(chunk.get());
+                }
+            }
+            int loaded = 0;
+            for (LoadedChunk chunk : chunks) {
+                for (int i = 0; i < chunk.count; i++) {
+                    if (isIn(chunk.xs[i], chunk.ys[i])) {
+                        int slot = allocate(chunk.xs[i], chunk.ys[i]);
+                        cells[slot].copy(chunk.cells[i]);
+                        update(slot);
+                    } else {
+                        skipped++;
+                    }
+                }
+                loaded += chunk.count;
+            }
+            return loaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + fileName);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Returns the position after the end of the line containing position (or the file size)
+    private static long lineEnd(FileChannel channel, long position, long fileSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < fileSize) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * The cells parsed from a chunk of whole lines of a text file, in the order of the file.
+     */
+    private static final class LoadedChunk {
+        int count;
+        int[] xs = new int[64], ys = new int[64];
+        SCell[] cells = new SCell[64];
+
+        /**
+         * Reads and parses a chunk, a line is ended by '\n', '\r' or "\r\n" (as by BufferedReader.readLine()).
+         * @param first true for the chunk at the start of the file, whose first line is skipped
+         */
+        static LoadedChunk parse(FileChannel channel, long from, int length, boolean first) throws IOException {
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0) throw new EOFException("File truncated while loading");
+            }
+            Charset charset = Charset.defaultCharset();
+            LoadedChunk chunk = new LoadedChunk();
+            boolean skip = first;
+            for (int start = 0, end = 0; start < length; start = end + 1) {
+                end = start;
+                while (end < length && bytes[end] != '\n' && bytes[end] != '\r') end++;
+                if (skip) skip = false; // Skip the first empty line
+                else chunk.add(new String(bytes, start, end - start, charset));
+                if (end + 1 < length && bytes[end] == '\r' && bytes[end + 1] == '\n') end++;
+            }
+            return chunk;
+        }
+
+        // Parses a line <x>,<y>,<data> into a cell, ignoring invalid lines
+        private void add(String line) {
+            int comma = line.indexOf(','), second = comma < 0 ? -1 : line.indexOf(',', comma + 1);
+            if (second < 0) return; // Ignore invalid lines
+            int x = CellRef.parseDigits(line, 0, comma), y = CellRef.parseDigits(line, comma + 1, second);
+            if (x < 0 || y < 0) return;
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, 2 * count);
+                ys = Arrays.copyOf(ys, 2 * count);
+                cells = Arrays.copyOf(cells, 2 * count);
+            }
+            xs[count] = x;
+            ys[count] = y;
+            cells[count++] = new SCell(line.substring(second + 1));
+        }
+    }
+
+    /**
+     * @return the number of cells of the last file loaded by load() which were out of this sheet (skipped)
+     */
+    int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Reads the dimensions of the sheet saved in a binary file (see saveBinary()).
+     * @return the width and the height of the saved sheet, or null if the file is not a binary sheet file
+     * @throws IOException if an I/O error occurs
+     */
+    static int[] binarySize(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            if (in.readInt() != BINARY_MAGIC) return null;
+            in.readShort(); // the version and the flags
+            in.readShort();
+            return new int[]{in.readInt(), in.readInt()};
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Checks if a file starts with the magic of the binary format
+    private static boolean isBinary(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == BINARY_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads a binary file (see saveBinary()), memory mapped. The cells out of this sheet are skipped.
+     * The stored values are used only if this sheet was empty, otherwise the loaded cells are recomputed.
+     * @return the number of cells loaded
+     * @throws IOException if an I/O error occurs, or if the file is not a valid binary sheet file
+     */
+    private int loadBinary(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                buffer.getInt(); // the magic
+                int fileVersion = buffer.getShort(), flags = buffer.getShort();
+                if (fileVersion != BINARY_VERSION) throw new IOException("Unsupported binary sheet version: " + fileVersion);
+                buffer.getInt(); // the width and the height of the saved sheet (see binarySize()), its cells are loaded as is
+                buffer.getInt();
+                String[] table = new String[checkCount(buffer.getInt(), 4, buffer, fileName)];
+                byte[] bytes = new byte[64];
+                for (int i = 0; i < table.length; i++) {
+                    int length = checkCount(buffer.getInt(), 1, buffer, fileName);
+                    if (length > bytes.length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+                    buffer.get(bytes, 0, length);
+                    table[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+                boolean cached = (flags & BINARY_VALUES) != 0 && isEmpty();
+                int count = checkCount(buffer.getInt(), 13, buffer, fileName); // x, y, a kind and at least an int
+                int[] loaded = cached ? new int[count] : null;
+                for (int i = 0; i < count; i++) {
+                    int x = buffer.getInt(), y = buffer.getInt();
+                    byte kind = buffer.get();
+                    int slot = isIn(x, y) ? allocate(x, y) : -1;
+                    if (slot < 0) skipped++;
+                    if (kind == BINARY_STRING) {
+                        String data = table[buffer.getInt()];
+                        if (slot >= 0) cells[slot].assign(data);
+                    } else {
+                        double number = buffer.getDouble();
+                        if (slot >= 0) {
+                            cells[slot].setNumber(kind == BINARY_INTEGER ? Long.toString((long) number) : Double.toString(number), number);
+                        }
                     }
+                    if (slot >= 0) update(slot);
+                    if (cached) loaded[i] = slot;
                 }
+                if (cached) {
+                    for (int i = 0; i < count; i++) {
+                        byte kind = buffer.get();
+                        double number = buffer.getDouble();
+                        if (loaded[i] >= 0 && !restore(loaded[i], kind, number)) {
+                            throw new IOException("Truncated or corrupted binary sheet file: " + fileName + " (status " + kind + ")");
+                        }
+                    }
+                    int dirtyLeft = 0;
+                    for (int i = 0; i < dirtyCount; i++) {
+                        if (dirty[dirtyCells[i]]) dirtyCells[dirtyLeft++] = dirtyCells[i];
+                    }
+                    dirtyCount = dirtyLeft;
+                }
+                return count;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated or corrupted binary sheet file: " + fileName, e);
             }
         }
     }
+
+    // Checks a count read from a binary file against the bytes left, so a corrupted count fails before it is allocated
+    private static int checkCount(int count, int bytesEach, ByteBuffer buffer, String fileName) throws IOException {
+        if (count < 0 || count > buffer.remaining() / bytesEach) {
+            throw new IOException("Truncated or corrupted binary sheet file: " + fileName + " (count " + count + ")");
+        }
+        return count;
+    }
+
+    // Checks if no cell of this sheet has data
+    private boolean isEmpty() {
+        for (int slot = 0; slot < size; slot++) {
+            if (!cells[slot].getData().isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Restores the computed value of a loaded cell of an empty sheet, as saved by saveBinary().
+     * @return false if the status does not fit the cell (e.g., COMPUTED for a text), the cell is left as is
+     */
+    private boolean restore(int slot, byte kind, double number) {
+        SCell cell = cells[slot];
+        boolean valid = switch (cell.getType()) {
+            case SCell.TEXT -> kind == TEXT;
+            case SCell.NUMBER -> kind == NUMBER;
+            case SCell.FORM -> kind == COMPUTED || kind == ERR_FORM || kind == ERR_CYCLE;
+            default -> kind == ERR_FORM; // a wrong formula (see evaluate())
+        };
+        if (!valid) return false;
+        status[slot] = kind;
+        numbers[slot] = number;
+        formatted[slot] = null;
+        if (cell.getType() == SCell.FORM && kind == ERR_FORM) cell.setType(SCell.ERR_WRONG_FORM);
+        if (cell.getType() == SCell.FORM && kind == ERR_CYCLE) cell.setType(SCell.ERR_CYCLE_FORM);
+        dirty[slot] = false;
+        reindex(slot);
+        return true;
+    }
 }
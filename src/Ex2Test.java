@@ -55,6 +55,37 @@ public class Ex2Test {
             cell.setOrder(2);
             assertEquals(2, cell.getOrder());
         }
+
+        @Test
+        void testNumberDetectionMatchesParseDouble() {
+            java.util.List<String> data = new java.util.ArrayList<>(java.util.List.of("0", "-0", "+7", "1.", ".5", ".", "-", "1e", "1e+",
+                    "1e-5", "2.5E10", " 12 ", "\t3\n", "1f", "1.5D", "1fd", "NaN", "-Infinity", "Infinityx", "nan", "0x1.8p1",
+                    "0x", "0xG", "1_000", "12abc", "123456789012345678901234567890", "0.1000000000000000055511151231257827",
+                    "1e400", "1e-400", "4.9e-324", "9007199254740993", "000000000000000000001.5", " ", "", "   "));
+            java.util.Random random = new java.util.Random(20);
+            String alphabet = "0123456789.eE+-fd x";
+            for (int i = 0; i < 20_000; i++) {
+                StringBuilder s = new StringBuilder();
+                for (int length = 1 + random.nextInt(12); length > 0; length--) {
+                    s.append(alphabet.charAt(random.nextInt(i % 2 == 0 ? 10 : alphabet.length())));
+                }
+                data.add(s.toString());
+                data.add(Double.toString(Double.longBitsToDouble(random.nextLong())));
+                data.add(random.nextInt(100_000) + "." + random.nextInt(1000) + "e" + (random.nextInt(60) - 30));
+            }
+            for (String d : data) {
+                double expected;
+                try {
+                    expected = Double.parseDouble(d);
+                } catch (NumberFormatException e) {
+                    assertNotEquals(SCell.NUMBER, new SCell(d).getType(), d);
+                    continue;
+                }
+                SCell cell = new SCell(d);
+                assertEquals(SCell.NUMBER, cell.getType(), d);
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(cell.evaluate(null)), d);
+            }
+        }
     @Test
     public void testSetAndGetValue() {
         Ex2Sheet sheet = new Ex2Sheet(5, 5);
@@ -148,6 +179,19 @@ public class Ex2Test {
             assertEquals("10", sheet.get(0, 0).getData());
         }
 
+        @Test
+        void testSetDataThroughCell() {
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 0, "1");
+            sheet.set(0, 1, "=A0+1");
+            assertEquals("2.0", sheet.value(0, 1));
+            sheet.get(0, 0).setData("5"); // the Cell interface updates the dependents as set() does
+            assertEquals("6.0", sheet.value(0, 1));
+            sheet.get(0, 2).setData("=A1*2");
+            assertEquals("12.0", sheet.eval(0, 2));
+            assertEquals(2, sheet.depth()[0][2]);
+        }
+
         @Test
         void testValueForNumber() {
             Ex2Sheet sheet = new Ex2Sheet(10, 10);
@@ -181,6 +225,43 @@ public class Ex2Test {
             assertEquals(2, depths[2][0]);
         }
 
+        @Test
+        void testDepthOfCycles() {
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            sheet.set(0, 0, "=B0");
+            sheet.set(1, 0, "=A0");
+            sheet.set(2, 0, "=A0+D0");
+            sheet.set(3, 0, "5");
+            sheet.set(4, 0, "=E0");
+            sheet.set(5, 0, "=D0*2");
+            int[][] depths = sheet.depth();
+            assertEquals(-1, depths[0][0]);
+            assertEquals(-1, depths[1][0]);
+            assertEquals(-1, depths[2][0]);
+            assertEquals(0, depths[3][0]);
+            assertEquals(-1, depths[4][0]);
+            assertEquals(1, depths[5][0]);
+        }
+
+        @Test
+        void testDepthOfLayeredDiamonds() {
+            // every cell reads two cells of the previous row, without memoization this takes 2^98 steps
+            Ex2Sheet sheet = new Ex2Sheet(26, 99);
+            for (int col = 0; col < 26; col++) {
+                sheet.set(col, 0, "" + col);
+                for (int row = 1; row < 99; row++) {
+                    char left = (char) ('A' + col), right = (char) ('A' + (col + 1) % 26);
+                    sheet.set(col, row, "=" + left + (row - 1) + "+" + right + (row - 1));
+                }
+            }
+            int[][] depths = assertTimeoutPreemptively(java.time.Duration.ofSeconds(5), () -> sheet.depth());
+            for (int col = 0; col < 26; col++) {
+                for (int row = 0; row < 99; row++) {
+                    assertEquals(row, depths[col][row]);
+                }
+            }
+        }
+
         @Test
         void testInvalidReference() {
             Ex2Sheet sheet = new Ex2Sheet(10, 10);
@@ -193,6 +274,1385 @@ public class Ex2Test {
             Ex2Sheet sheet = new Ex2Sheet(10, 10);
             assertEquals("", sheet.value(0, 0));
         }
+
+        @Test
+        void testCachedValuesMatchEvaluator() {
+            // expected values are the ones computed by the evaluator before the value cache was added
+            String[][] cells = {
+                    {"A0", "5", "5"}, {"A1", "=A0+3", "8.0"}, {"A2", "=A1*A0", "40.0"}, {"A3", "=(A2-A1)/2", "16.0"},
+                    {"B0", "=A0+A0", "10.0"}, {"B1", "=B0+B0", "20.0"}, {"B2", "=B1*b1", "400.0"},
+                    {"C0", "hello", "hello"}, {"C1", "=C0+1", "ERR_FORM!!!"}, {"C2", "=1/0", "ERR_FORM!!!"},
+                    {"D0", "=D1", "ERR_CYCLE!!!"}, {"D1", "=D0", "ERR_CYCLE!!!"}, {"D2", "=D1+1", "ERR_CYCLE!!!"},
+                    {"E0", "=10+", "ERR_FORM!!!"}, {"E1", "=E0*2", "ERR_FORM!!!"},
+                    {"F0", "=-A0*2", "-10.0"}, {"F1", "=2*(3+(A0-1))", "14.0"},
+                    {"G0", "-2.5", "-2.5"}, {"G1", "=G0*4", "-10.0"}, {"G2", "= 1 + 2 * 3", "7.0"},
+                    {"H0", "=H0", "ERR_CYCLE!!!"}, {"H1", "=A0+H9", "ERR_FORM!!!"}
+            };
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            for (String[] cell : cells) {
+                int[] xy = sheet.parseEntry(cell[0]);
+                sheet.set(xy[0], xy[1], cell[1]);
+            }
+            sheet.eval();
+            for (String[] cell : cells) {
+                int[] xy = sheet.parseEntry(cell[0]);
+                assertEquals(cell[2], sheet.value(xy[0], xy[1]), cell[0]);
+            }
+        }
+
+        @Test
+        void testCacheInvalidatedOnSet() {
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            sheet.set(0, 0, "2");
+            sheet.set(0, 1, "=A0*3");
+            sheet.set(0, 2, "=A1+A0");
+            sheet.eval();
+            assertEquals("8.0", sheet.value(0, 2));
+            sheet.set(0, 0, "4");
+            assertEquals("16.0", sheet.value(0, 2));
+            assertEquals("12.0", sheet.value(0, 1));
+        }
+
+        @Test
+        void testDeepFanOutChain() {
+            // every cell reads its predecessor twice, without a cache this takes 2^99 evaluations
+            Ex2Sheet sheet = new Ex2Sheet(1, 99);
+            sheet.set(0, 0, "1");
+            for (int row = 1; row < 99; row++) {
+                sheet.set(0, row, "=A" + (row - 1) + "*2-A" + (row - 1));
+            }
+            assertTimeoutPreemptively(java.time.Duration.ofSeconds(5), () -> sheet.eval());
+            assertEquals("1.0", sheet.value(0, 98));
+        }
+
+        @Test
+        void testCycleAndDependentsMarked() {
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            sheet.set(0, 0, "=B0+1");
+            sheet.set(1, 0, "=A0");
+            sheet.set(2, 0, "=B0*2");
+            sheet.set(3, 0, "7");
+            sheet.eval();
+            assertEquals("ERR_CYCLE!!!", sheet.value(0, 0));
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 0));
+            assertEquals("ERR_CYCLE!!!", sheet.value(2, 0));
+            assertEquals(SCell.ERR_CYCLE_FORM, sheet.get(2, 0).getType());
+            assertEquals("7", sheet.value(3, 0));
+        }
+
+        @Test
+        void testErrorsClearedWhenFixed() {
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            sheet.set(0, 0, "=B0+1");
+            sheet.set(1, 0, "=A0");
+            sheet.set(0, 1, "=B1*2");
+            sheet.set(1, 1, "abc");
+            sheet.eval();
+            assertEquals("ERR_CYCLE!!!", sheet.value(0, 0));
+            assertEquals("ERR_FORM!!!", sheet.value(0, 1));
+
+            sheet.set(1, 0, "3");
+            sheet.set(1, 1, "4");
+            assertEquals("4.0", sheet.value(0, 0));
+            assertEquals(SCell.FORM, sheet.get(0, 0).getType());
+            assertEquals("8.0", sheet.value(0, 1));
+        }
+
+        @Test
+        void testNumericValueStore() {
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 0, "1");
+            sheet.set(0, 1, "=A0/3");
+            sheet.set(0, 2, "=A1*3");
+            sheet.set(1, 0, "text");
+            sheet.set(1, 1, "=B0");
+            sheet.eval();
+            assertEquals(1.0 / 3, sheet.numberAt(0, 1));
+            assertEquals(1.0, sheet.numberAt(0, 2));
+            assertThrows(IllegalArgumentException.class, () -> sheet.numberAt(1, 0));
+            assertThrows(IllegalArgumentException.class, () -> sheet.numberAt(1, 1));
+            assertThrows(IllegalArgumentException.class, () -> sheet.numberAt(2, 2));
+            assertEquals("0.3333333333333333", sheet.value(0, 1));
+            assertSame(sheet.value(0, 1), sheet.value(0, 1));
+            assertEquals("text", sheet.value(1, 0));
+            assertEquals("ERR_FORM!!!", sheet.value(1, 1));
+        }
+
+        @Test
+        void testIncrementalEditsMatchFullEvaluation() {
+            String[] data = {"", "1", "-2", "abc", "=A0+1", "=B1*A2", "=C2-(A1+1)", "=A3", "=B0/2", "=D1+C0", "=2*(B2+3)",
+                    "=if(A1>0,B2,C3)", "=if(B0==1,A0,A0+1)", "=if(C1<=-2,D2,sum(A0:B3))", "=pow(A1,2)-sin(B1)"};
+            java.util.Random random = new java.util.Random(42);
+            Ex2Sheet sheet = new Ex2Sheet(4, 4);
+            for (int edit = 0; edit < 500; edit++) {
+                sheet.set(random.nextInt(4), random.nextInt(4), data[random.nextInt(data.length)]);
+                if (edit % 3 == 0) sheet.eval();
+
+                Ex2Sheet fresh = new Ex2Sheet(4, 4);
+                for (int x = 0; x < 4; x++) {
+                    for (int y = 0; y < 4; y++) {
+                        fresh.set(x, y, sheet.get(x, y).getData());
+                    }
+                }
+                for (int x = 0; x < 4; x++) {
+                    for (int y = 0; y < 4; y++) {
+                        assertEquals(fresh.value(x, y), sheet.value(x, y), "edit " + edit);
+                        assertEquals(fresh.get(x, y).getType(), sheet.get(x, y).getType(), "edit " + edit);
+                    }
+                }
+            }
+        }
+
+        @Test
+        void testConditionalFunctions() {
+            Ex2Sheet sheet = new Ex2Sheet(4, 4);
+            sheet.set(0, 0, "2");
+            sheet.set(0, 1, "=if(A0>1, 10, 1/0)");
+            sheet.set(1, 0, "=if(A0==0, 5, B0)");
+            sheet.set(2, 0, "=pow(2, 10)");
+            sheet.set(2, 1, "=pow(-8, 0.5)");
+            sheet.set(2, 2, "=sin(0)+cos(0)");
+            sheet.set(2, 3, "=(1<2)+(2<=2)+(3==3)+(1!=1)+(2>3)+(3>=1)");
+            sheet.set(3, 0, "=max(1, A0, 3)-min(A0, -1)");
+            assertEquals("10.0", sheet.value(0, 1));
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 0));
+            assertEquals("1024.0", sheet.value(2, 0));
+            assertEquals("ERR_FORM!!!", sheet.value(2, 1));
+            assertEquals("1.0", sheet.value(2, 2));
+            assertEquals("4.0", sheet.value(2, 3));
+            assertEquals("4.0", sheet.value(3, 0));
+
+            sheet.set(0, 0, "0");
+            assertEquals("ERR_FORM!!!", sheet.value(0, 1));
+            assertEquals("5.0", sheet.value(1, 0)); // the branch reading itself is not taken
+            assertEquals(SCell.FORM, sheet.get(1, 0).getType());
+            sheet.set(0, 0, "3");
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 0));
+            assertEquals(SCell.ERR_CYCLE_FORM, sheet.get(1, 0).getType());
+        }
+
+        @Test
+        void testLazyIfOverCycles() {
+            Ex2Sheet sheet = new Ex2Sheet(4, 4);
+            sheet.set(2, 0, "0");
+            sheet.set(0, 0, "=if(C0, B0, 1)");
+            sheet.set(1, 0, "=A0+1");
+            sheet.set(1, 1, "=B0*10");
+            sheet.set(0, 3, "=if(C0==0, 1, sum(A1:A3))");
+            assertEquals("1.0", sheet.value(0, 0));
+            assertEquals("2.0", sheet.value(1, 0));
+            assertEquals("20.0", sheet.value(1, 1));
+            assertEquals("1.0", sheet.value(0, 3));
+
+            sheet.set(2, 0, "1");
+            assertEquals("ERR_CYCLE!!!", sheet.value(0, 0));
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 0));
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 1));
+            assertEquals("ERR_CYCLE!!!", sheet.value(0, 3));
+
+            sheet.set(2, 0, "0");
+            assertEquals("20.0", sheet.value(1, 1));
+            assertEquals("1.0", sheet.value(0, 3));
+        }
+
+        @Test
+        void testUntakenBranchNotRecomputed() {
+            Ex2Sheet sheet = new Ex2Sheet(2, 3);
+            sheet.set(0, 0, "1");
+            sheet.set(0, 1, "2");
+            sheet.set(0, 2, "3");
+            sheet.set(1, 0, "=if(A0, A1, A2)");
+            sheet.set(1, 1, "=B0*2");
+            assertEquals("4.0", sheet.value(1, 1));
+            sheet.set(0, 2, "=1/0"); // not read, so B0 and B1 stay as is
+            assertSame(sheet.value(1, 1), sheet.value(1, 1));
+            assertEquals("2.0", sheet.value(1, 0));
+            sheet.set(0, 0, "0");
+            assertEquals("ERR_FORM!!!", sheet.value(1, 0));
+            assertEquals("ERR_FORM!!!", sheet.value(1, 1));
+            sheet.set(0, 2, "7");
+            assertEquals("14.0", sheet.value(1, 1));
+        }
+
+        @Test
+        void testProfiling() throws java.io.IOException {
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            assertTrue(sheet.profile(5).isEmpty());
+            sheet.setProfiling(true);
+            sheet.set(0, 0, "2");
+            sheet.set(0, 1, "=A0*2");
+            sheet.set(0, 2, "=A1+A0");
+            assertEquals("6.0", sheet.value(0, 2)); // a miss, all the cells are evaluated
+            assertEquals("6.0", sheet.value(0, 2)); // a hit
+            sheet.set(0, 0, "3");
+            assertEquals("6.0", sheet.value(0, 1));
+
+            java.util.List<CellProfile> report = sheet.profile(10);
+            assertEquals(3, report.size());
+            for (int i = 1; i < report.size(); i++) {
+                assertTrue(report.get(i - 1).totalNanos() >= report.get(i).totalNanos());
+            }
+            CellProfile a2 = report.stream().filter(c -> c.cell().equals("A2")).findFirst().orElseThrow();
+            assertEquals(2, a2.evaluations());
+            assertEquals(1, a2.hits());
+            assertEquals(1, a2.misses());
+            assertEquals(2, a2.depth());
+            assertEquals(java.util.List.of("A0", "A1"), a2.precedents());
+            assertTrue(a2.maxNanos() <= a2.totalNanos());
+            assertEquals(1, sheet.profile(1).size());
+
+            java.io.File file = java.io.File.createTempFile("profile", ".csv");
+            file.deleteOnExit();
+            sheet.exportProfile(file.getPath());
+            java.util.List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+            assertEquals(CellProfile.CSV_HEADER, lines.get(0));
+            assertEquals(4, lines.size());
+            assertTrue(lines.contains(a2.toCsv()));
+            assertTrue(a2.toCsv().endsWith(",2,A0 A1"));
+
+            sheet.setProfiling(false);
+            assertTrue(sheet.profile(5).isEmpty());
+        }
+
+        @Test
+        void testFlightRecorderEvents() throws java.io.IOException {
+            java.io.File sheetFile = java.io.File.createTempFile("events", ".txt");
+            java.io.File recordingFile = java.io.File.createTempFile("events", ".jfr");
+            sheetFile.deleteOnExit();
+            recordingFile.deleteOnExit();
+            try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+                recording.enable("ex2.SheetRecalc").withThreshold(java.time.Duration.ZERO);
+                recording.enable("ex2.CellEvaluate").withThreshold(java.time.Duration.ZERO);
+                recording.enable("ex2.SheetSave").withThreshold(java.time.Duration.ZERO);
+                recording.enable("ex2.SheetLoad").withThreshold(java.time.Duration.ZERO);
+                recording.start();
+                Ex2Sheet sheet = new Ex2Sheet(3, 3);
+                sheet.set(0, 0, "2");
+                sheet.set(0, 1, "=A0*2");
+                sheet.set(1, 0, "=B1");
+                sheet.set(1, 1, "=B0+A1");
+                sheet.eval();
+                sheet.save(sheetFile.getPath());
+                new Ex2Sheet(3, 3).load(sheetFile.getPath());
+                recording.stop();
+                recording.dump(recordingFile.toPath());
+            }
+
+            java.util.List<jdk.jfr.consumer.RecordedEvent> events = jdk.jfr.consumer.RecordingFile.readAllEvents(recordingFile.toPath());
+            jdk.jfr.consumer.RecordedEvent recalc = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("ex2.SheetRecalc")).findFirst().orElseThrow();
+            assertEquals(4, recalc.getInt("cells")); // every cell set since the last recalculation
+            assertEquals(2, recalc.getInt("cycles"));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("ex2.CellEvaluate")
+                    && e.getInt("x") == 0 && e.getInt("y") == 1 && e.getString("formula").equals("=A0*2")));
+            for (String name : new String[]{"ex2.SheetSave", "ex2.SheetLoad"}) {
+                jdk.jfr.consumer.RecordedEvent io = events.stream()
+                        .filter(e -> e.getEventType().getName().equals(name)).findFirst().orElseThrow();
+                assertEquals(sheetFile.getPath(), io.getString("file"));
+                assertEquals(sheetFile.length(), io.getLong("bytes"));
+                assertEquals(4, io.getInt("cells"));
+            }
+        }
+
+        @Test
+        void testSparseSheet() throws java.io.IOException {
+            Ex2Sheet sheet = new Ex2Sheet(26, 1_000_000, true);
+            sheet.set(0, 0, "5");
+            sheet.set(1, 999_999, "=A0*2+C500000");
+            assertEquals("ERR_FORM!!!", sheet.value(1, 999_999));
+            sheet.set(2, 500_000, "1");
+            assertEquals("11.0", sheet.value(1, 999_999));
+            assertEquals("", sheet.value(25, 123_456));
+            assertEquals("", sheet.get(25, 123_456).getData());
+            assertSame(sheet.get(25, 123_456), sheet.get(3, 3));
+            assertThrows(UnsupportedOperationException.class, () -> sheet.get(3, 3).setData("1"));
+            assertNull(sheet.get(26, 0));
+
+            java.io.File file = java.io.File.createTempFile("ex2sparse", ".txt");
+            file.deleteOnExit();
+            sheet.save(file.getPath());
+            Ex2Sheet loaded = new Ex2Sheet(26, 1_000_000, true);
+            loaded.load(file.getPath());
+            assertEquals("11.0", loaded.value(1, 999_999));
+            assertEquals("=A0*2+C500000", loaded.get(1, 999_999).getData());
+        }
+
+        @Test
+        void testBinaryFormat() throws java.io.IOException {
+            String[][] data = {{"5", "2.5", "-3", "1e3", "007"}, {"=A0*2", "=SUM(A0:A4)", "text, with comma", "=B0+", "=C2"},
+                    {"=C1", "=if(A0>1, B0, C0)", "=1/0", "héllo", "=A1+A1"}};
+            Ex2Sheet sheet = new Ex2Sheet(3, 5);
+            for (int x = 0; x < data.length; x++) {
+                for (int y = 0; y < data[x].length; y++) {
+                    sheet.set(x, y, data[x][y]);
+                }
+            }
+            java.io.File binary = java.io.File.createTempFile("ex2", ".bin");
+            java.io.File text = java.io.File.createTempFile("ex2", ".txt");
+            binary.deleteOnExit();
+            text.deleteOnExit();
+            for (boolean values : new boolean[]{false, true}) {
+                sheet.saveBinary(binary.getPath(), values);
+                for (boolean sparse : new boolean[]{false, true}) {
+                    Ex2Sheet loaded = new Ex2Sheet(3, 5, sparse);
+                    loaded.load(binary.getPath());
+                    for (int x = 0; x < 3; x++) {
+                        for (int y = 0; y < 5; y++) {
+                            assertEquals(sheet.get(x, y).getData(), loaded.get(x, y).getData());
+                            assertEquals(sheet.value(x, y), loaded.value(x, y));
+                            assertEquals(sheet.get(x, y).getType(), loaded.get(x, y).getType());
+                        }
+                    }
+                    loaded.set(0, 0, "6"); // the dependents of a loaded cell are recomputed
+                    assertEquals("12.0", loaded.value(1, 0));
+                    assertEquals("1012.5", loaded.value(1, 1));
+                }
+            }
+
+            // text -> binary -> text
+            sheet.save(text.getPath());
+            Ex2Sheet converted = new Ex2Sheet(3, 5);
+            converted.load(text.getPath());
+            converted.saveBinary(binary.getPath(), false);
+            Ex2Sheet back = new Ex2Sheet(3, 5);
+            back.load(binary.getPath());
+            back.save(text.getPath());
+            Ex2Sheet reloaded = new Ex2Sheet(3, 5);
+            reloaded.load(text.getPath());
+            assertEquals("5", reloaded.value(0, 0));
+            assertEquals("1011.5", reloaded.value(1, 1));
+            assertEquals("text, with comma", reloaded.value(1, 2));
+
+            // the cells of a smaller sheet are skipped, a corrupted file is an IOException
+            Ex2Sheet small = new Ex2Sheet(1, 2);
+            small.load(binary.getPath());
+            assertEquals("2.5", small.value(0, 1));
+            assertEquals("5", small.value(0, 0));
+            java.nio.file.Files.write(binary.toPath(), java.util.Arrays.copyOf(java.nio.file.Files.readAllBytes(binary.toPath()), 20));
+            assertThrows(java.io.IOException.class, () -> new Ex2Sheet(3, 5).load(binary.getPath()));
+        }
+
+        @Test
+        void testCorruptedBinaryCounts() throws java.io.IOException {
+            java.io.File binary = java.io.File.createTempFile("ex2", ".bin");
+            binary.deleteOnExit();
+            // the string count, a string length and the cell count, each either negative or beyond the file
+            int[][] counts = {{-1, 0, 0}, {Integer.MAX_VALUE, 0, 0}, {1, -5, 0}, {1, 1 << 30, 0}, {0, 0, -1}, {0, 0, 1 << 28}};
+            for (int[] count : counts) {
+                java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(64);
+                buffer.putInt(0x45583242).putShort((short) 1).putShort((short) 0).putInt(3).putInt(5);
+                buffer.putInt(count[0]);
+                if (count[0] == 1) buffer.putInt(count[1]);
+                buffer.putInt(count[2]);
+                java.nio.file.Files.write(binary.toPath(), java.util.Arrays.copyOf(buffer.array(), buffer.position()));
+                java.io.IOException e = assertThrows(java.io.IOException.class, () -> new Ex2Sheet(3, 5).load(binary.getPath()));
+                assertTrue(e.getMessage().startsWith("Truncated or corrupted binary sheet file"));
+            }
+        }
+
+        @Test
+        void testCorruptedBinaryStatus() throws java.io.IOException {
+            java.io.File binary = java.io.File.createTempFile("ex2", ".bin");
+            binary.deleteOnExit();
+            // a single cell, its saved status is the byte before the last double of the file
+            String[] data = {"hello", "=1+2"};
+            byte[][] invalid = {{2, 3, 4, 7, -1}, {0, 1, 5, 9}};
+            for (int c = 0; c < data.length; c++) {
+                Ex2Sheet sheet = new Ex2Sheet(3, 5);
+                sheet.set(1, 1, data[c]);
+                sheet.eval();
+                sheet.saveBinary(binary.getPath(), true);
+                byte[] bytes = java.nio.file.Files.readAllBytes(binary.toPath());
+                for (byte kind : invalid[c]) {
+                    bytes[bytes.length - 9] = kind;
+                    java.nio.file.Files.write(binary.toPath(), bytes);
+                    java.io.IOException e = assertThrows(java.io.IOException.class, () -> new Ex2Sheet(3, 5).load(binary.getPath()));
+                    assertTrue(e.getMessage().startsWith("Truncated or corrupted binary sheet file"));
+                }
+            }
+            // a valid status which is not the computed one is restored as saved (the values are trusted)
+            Ex2Sheet sheet = new Ex2Sheet(3, 5);
+            sheet.set(1, 1, "=1+2");
+            sheet.saveBinary(binary.getPath(), true);
+            byte[] bytes = java.nio.file.Files.readAllBytes(binary.toPath());
+            bytes[bytes.length - 9] = 3; // ERR_FORM
+            java.nio.file.Files.write(binary.toPath(), bytes);
+            Ex2Sheet loaded = new Ex2Sheet(3, 5);
+            loaded.load(binary.getPath());
+            assertEquals("ERR_FORM!!!", loaded.value(1, 1));
+        }
+
+        @Test
+        void testChunkedLoad() throws java.io.IOException {
+            String content = "0,0,header line\n0,0,1\r\n0,1,=2+a0\n0,2,=a1*1.4,remark\r0,3,a string without a comma\n"
+                    + "11=3, ignored\n1,2,3, loaded\n\n1,x,ignored\n9,9,out of the sheet\n0,0,4\n2,2,=A0+A1";
+            java.io.File file = java.io.File.createTempFile("ex2chunks", ".txt");
+            file.deleteOnExit();
+            java.nio.file.Files.writeString(file.toPath(), content);
+            Ex2Sheet expected = new Ex2Sheet(3, 4);
+            String[][] cells = {{"0", "0", "1"}, {"0", "1", "=2+a0"}, {"0", "2", "=a1*1.4,remark"}, {"0", "3", "a string without a comma"},
+                    {"1", "2", "3, loaded"}, {"0", "0", "4"}, {"2", "2", "=A0+A1"}};
+            for (String[] cell : cells) {
+                expected.set(Integer.parseInt(cell[0]), Integer.parseInt(cell[1]), cell[2]);
+            }
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(3);
+            for (int chunk : new int[]{1, 5, 16, 40, 1 << 20}) {
+                Ex2Sheet sheet = new Ex2Sheet(3, 4);
+                if (chunk == 16) sheet.setParallelism(pool, 1);
+                assertEquals(8, sheet.loadText(file.getPath(), chunk)); // the line out of the sheet is counted, as by set()
+                for (int x = 0; x < 3; x++) {
+                    for (int y = 0; y < 4; y++) {
+                        assertEquals(expected.get(x, y).getData(), sheet.get(x, y).getData());
+                        assertEquals(expected.value(x, y), sheet.value(x, y));
+                    }
+                }
+            }
+            pool.shutdown();
+            assertEquals("4", expected.value(0, 0)); // the last line of a cell wins
+            assertEquals("10.0", expected.value(2, 2));
+        }
+
+        @Test
+        void testSparseMatchesDense() {
+            String[] data = {"", "1", "-2", "abc", "=A0+1", "=B1*A2", "=C2-(A1+1)", "=A3", "=B0/2", "=D1+C0", "=2*(B2+3)"};
+            java.util.Random random = new java.util.Random(11);
+            Ex2Sheet dense = new Ex2Sheet(4, 4), sparse = new Ex2Sheet(4, 4, true);
+            for (int edit = 0; edit < 300; edit++) {
+                int x = random.nextInt(4), y = random.nextInt(4);
+                String d = data[random.nextInt(data.length)];
+                dense.set(x, y, d);
+                sparse.set(x, y, d);
+                for (int col = 0; col < 4; col++) {
+                    for (int row = 0; row < 4; row++) {
+                        assertEquals(dense.value(col, row), sparse.value(col, row), "edit " + edit);
+                        assertEquals(dense.get(col, row).getType(), sparse.get(col, row).getType(), "edit " + edit);
+                    }
+                }
+                assertArrayEquals(dense.depth(), sparse.depth(), "edit " + edit);
+            }
+        }
+
+        @Test
+        void testRangeAggregates() {
+            Ex2Sheet sheet = new Ex2Sheet(5, 10);
+            for (int row = 0; row < 5; row++) {
+                sheet.set(0, row, "" + (row + 1)); // A0..A4 = 1..5
+                sheet.set(1, row, "=A" + row + "*2"); // B0..B4 = 2..10
+            }
+            sheet.set(1, 2, "text");
+            sheet.set(2, 0, "=SUM(A0:B4)");
+            sheet.set(2, 1, "=avg(A0:A4)");
+            sheet.set(2, 2, "=MIN(B4:A0,7)");
+            sheet.set(2, 3, "=MAX(A0:B4)+COUNT(A0:B9)");
+            sheet.set(2, 4, "=AVG(D0:D9)");
+            sheet.set(2, 5, "=SUM(A0:Z99)");
+            assertEquals("39.0", sheet.value(2, 0));
+            assertEquals("3.0", sheet.value(2, 1));
+            assertEquals("1.0", sheet.value(2, 2));
+            assertEquals("19.0", sheet.value(2, 3));
+            assertEquals("ERR_FORM!!!", sheet.value(2, 4));
+            assertEquals("ERR_FORM!!!", sheet.value(2, 5));
+
+            sheet.set(0, 0, "100");
+            sheet.set(1, 2, "=A2*2");
+            assertEquals("342.0", sheet.value(2, 0));
+            assertEquals("210.0", sheet.value(2, 3));
+            sheet.set(0, 3, "=1/0");
+            assertEquals("ERR_FORM!!!", sheet.value(2, 0));
+            sheet.set(0, 3, "=C0");
+            assertEquals("ERR_CYCLE!!!", sheet.value(2, 0));
+            assertEquals("ERR_CYCLE!!!", sheet.value(0, 3));
+            sheet.set(0, 3, "4");
+            assertEquals("342.0", sheet.value(2, 0));
+            assertEquals(2, sheet.depth()[2][0]);
+        }
+
+        @Test
+        void testRangesMatchSingleReferences() {
+            java.util.Random random = new java.util.Random(5);
+            for (boolean sparse : new boolean[]{false, true}) {
+                Ex2Sheet sheet = new Ex2Sheet(6, 30, sparse);
+                for (int edit = 0; edit < 400; edit++) {
+                    int x = random.nextInt(4), y = random.nextInt(30);
+                    sheet.set(x, y, random.nextInt(5) == 0 ? "" : "" + (random.nextInt(200) - 100));
+                    int x1 = random.nextInt(4), x2 = x1 + random.nextInt(4 - x1);
+                    int y1 = random.nextInt(30), y2 = y1 + random.nextInt(30 - y1);
+                    StringBuilder sum = new StringBuilder("=0"), count = new StringBuilder("=0");
+                    for (int col = x1; col <= x2; col++) {
+                        for (int row = y1; row <= y2; row++) {
+                            String name = CellRef.columnName(col) + row;
+                            if (!sheet.value(col, row).isEmpty()) {
+                                sum.append('+').append(name);
+                                count.append("+1");
+                            }
+                        }
+                    }
+                    String range = CellRef.columnName(x1) + y1 + ":" + CellRef.columnName(x2) + y2;
+                    sheet.set(4, edit % 30, "=SUM(" + range + ")");
+                    sheet.set(5, edit % 30, sum.toString());
+                    assertEquals(sheet.value(5, edit % 30), sheet.value(4, edit % 30), range + ", edit " + edit);
+                    sheet.set(4, edit % 30, "=COUNT(" + range + ")");
+                    sheet.set(5, edit % 30, count.toString());
+                    assertEquals(sheet.value(5, edit % 30), sheet.value(4, edit % 30), range + ", edit " + edit);
+                    for (int row = 0; row < 30; row++) {
+                        sheet.set(4, row, "");
+                        sheet.set(5, row, "");
+                    }
+                }
+            }
+        }
+
+        @Test
+        void testSparseRangeOverUnsetCells() {
+            Ex2Sheet sheet = new Ex2Sheet(3, 1_000_000, true);
+            sheet.set(1, 0, "=SUM(A0:A999999)+COUNT(A0:A999999)");
+            assertEquals("0.0", sheet.value(1, 0));
+            sheet.set(0, 500_000, "41");
+            assertEquals("42.0", sheet.value(1, 0));
+            sheet.set(2, 0, "=A999999");
+            sheet.set(0, 999_999, "=MAX(A0:A999998)");
+            assertEquals("41.0", sheet.value(2, 0));
+            assertEquals("84.0", sheet.value(1, 0));
+        }
+
+        @Test
+        void testRangeEdgesScaleWithSetCells() {
+            int rows = 1 << 30;
+            Ex2Sheet sheet = new Ex2Sheet(4, rows, true);
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                sheet.set(1, i, "=SUM(A0:A" + (rows - 1) + ")+" + i); // a column of a billion rows, read by 100 ranges
+            }
+            sheet.set(0, rows - 1, "5");
+            sheet.set(0, 7, "=B3"); // a cycle through a range
+            assertEquals("ERR_CYCLE!!!", sheet.value(1, 99));
+            sheet.set(0, 7, "2");
+            assertEquals("106.0", sheet.value(1, 99));
+            sheet.setParallelism(new java.util.concurrent.ForkJoinPool(2), 1);
+            sheet.set(0, 7, "3");
+            assertEquals("107.0", sheet.value(1, 99));
+            assertTrue(System.nanoTime() - start < 5_000_000_000L, "ranges cost their area");
+
+            Ex2Sheet small = new Ex2Sheet(3, 5); // the depth through range edges
+            small.set(0, 0, "1");
+            small.set(0, 1, "=A0");
+            small.set(1, 0, "=SUM(A0:A4)");
+            small.set(2, 0, "=B0");
+            assertEquals(2, small.depth()[1][0]);
+            assertEquals(3, small.depth()[2][0]);
+        }
+
+        @Test
+        void testParallelRecalculationMatchesSequential() {
+            java.util.Random random = new java.util.Random(7);
+            Ex2Sheet sequential = new Ex2Sheet(10, 50), parallel = new Ex2Sheet(10, 50);
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+            try {
+                parallel.setParallelism(pool, 1);
+                for (int edit = 0; edit < 2000; edit++) {
+                    int x = random.nextInt(10), y = random.nextInt(50);
+                    String data = random.nextInt(4) == 0 ? "" + random.nextInt(100)
+                            : "=" + (char) ('A' + random.nextInt(10)) + random.nextInt(50)
+                            + "/" + (char) ('A' + random.nextInt(10)) + random.nextInt(50) + "+1";
+                    if (random.nextInt(10) == 0) data = "=SUM(A" + random.nextInt(50) + ":C" + random.nextInt(50) + ")";
+                    sequential.set(x, y, data);
+                    parallel.set(x, y, data);
+                    if (edit % 100 == 99) {
+                        for (int col = 0; col < 10; col++) {
+                            for (int row = 0; row < 50; row++) {
+                                assertEquals(sequential.value(col, row), parallel.value(col, row), "edit " + edit);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Nested
+    class DependencyGraphTest {
+
+        @Test
+        void testTopologicalOrder() {
+            DependencyGraph graph = new DependencyGraph(4);
+            graph.setPrecedents(0, new int[]{1, 2});
+            graph.setPrecedents(1, new int[]{2});
+            int[] cells = {0, 1, 2, 3}, order = new int[4];
+            boolean[] all = {true, true, true, true};
+            assertEquals(4, graph.topologicalOrder(cells, 4, all, order));
+            assertArrayEquals(new int[]{2, 3, 1, 0}, order);
+        }
+
+        @Test
+        void testCycleLeftOut() {
+            DependencyGraph graph = new DependencyGraph(4);
+            graph.setPrecedents(0, new int[]{1});
+            graph.setPrecedents(1, new int[]{0});
+            graph.setPrecedents(2, new int[]{1});
+            int[] cells = {0, 1, 2, 3}, order = new int[4];
+            boolean[] all = {true, true, true, true};
+            assertEquals(1, graph.topologicalOrder(cells, 4, all, order));
+            assertEquals(3, order[0]);
+
+            graph.setPrecedents(1, DependencyGraph.NONE);
+            assertEquals(4, graph.topologicalOrder(cells, 4, all, order));
+            assertEquals(0, graph.dependentCount(0));
+            assertEquals(2, graph.dependentCount(1));
+        }
+
+        @Test
+        void testMarkDependents() {
+            DependencyGraph graph = new DependencyGraph(5);
+            graph.setPrecedents(1, new int[]{0});
+            graph.setPrecedents(2, new int[]{1});
+            graph.setPrecedents(3, new int[]{4});
+            boolean[] marked = new boolean[5];
+            int[] cells = new int[5];
+            int count = graph.markDependents(0, marked, cells, 0);
+            assertEquals(3, count);
+            assertArrayEquals(new boolean[]{true, true, true, false, false}, marked);
+            assertEquals(count, graph.markDependents(1, marked, cells, count));
+        }
+
+        @Test
+        void testActivePrecedents() {
+            DependencyGraph graph = new DependencyGraph(4);
+            graph.setPrecedents(2, new int[]{0, 1});
+            graph.setPrecedents(3, new int[]{2});
+            graph.setActive(2, new int[]{1});
+            boolean[] marked = new boolean[4];
+            int[] cells = new int[4];
+            assertEquals(1, graph.markDependents(0, marked, cells, 0));
+            assertEquals(4, graph.markDependents(1, marked, cells, 1));
+
+            graph.setPrecedents(2, new int[]{0, 1}); // all the precedents are active again
+            marked = new boolean[4];
+            assertEquals(3, graph.markDependents(0, marked, cells, 0));
+        }
+
+        @Test
+        void testLevels() {
+            DependencyGraph graph = new DependencyGraph(5);
+            graph.setPrecedents(1, new int[]{0});
+            graph.setPrecedents(2, new int[]{0, 1});
+            graph.setPrecedents(3, new int[]{4});
+            int[] cells = {0, 1, 2, 3, 4}, order = new int[5], byLevel = new int[5];
+            boolean[] all = {true, true, true, true, true};
+            int count = graph.topologicalOrder(cells, 5, all, order);
+            assertArrayEquals(new int[]{0, 2, 4, 5}, graph.levels(order, count, all, byLevel));
+            assertArrayEquals(new int[]{0, 4, 1, 3, 2}, byLevel);
+
+            boolean[] some = {false, true, true, false, false}; // 0 and 4 are already computed
+            count = graph.topologicalOrder(new int[]{1, 2}, 2, some, order);
+            assertArrayEquals(new int[]{0, 1, 2}, graph.levels(order, count, some, byLevel));
+        }
+    }
+
+    @Nested
+    class CellMapTest {
+
+        @Test
+        void testPutAndGet() {
+            CellMap map = new CellMap(2);
+            for (int i = 0; i < 1000; i++) {
+                map.put(CellRef.pack(i % 7, i * 31), i);
+            }
+            assertEquals(1000, map.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, map.get(CellRef.pack(i % 7, i * 31)));
+            }
+            assertEquals(-1, map.get(CellRef.pack(7, 0)));
+            map.put(CellRef.pack(0, 0), 5);
+            assertEquals(5, map.get(CellRef.pack(0, 0)));
+            assertEquals(1000, map.size());
+        }
+
+        @Test
+        void testKeys() {
+            long key = CellRef.pack(123, Integer.MAX_VALUE);
+            assertEquals(123, CellRef.x(key));
+            assertEquals(Integer.MAX_VALUE, CellRef.y(key));
+            assertNotEquals(CellRef.pack(0, 1), CellRef.pack(1, 0));
+        }
+    }
+
+    @Nested
+    class ColumnIndexTest {
+
+        @Test
+        void testQueriesMatchScan() {
+            java.util.Random random = new java.util.Random(3);
+            ColumnIndex index = new ColumnIndex(40);
+            double[] values = new double[40];
+            byte[] kinds = new byte[40];
+            for (int step = 0; step < 2000; step++) {
+                int rows = step < 1000 ? 20 : 40; // the rows 20..39 are empty at first
+                int row = random.nextInt(rows);
+                kinds[row] = (byte) random.nextInt(3);
+                values[row] = random.nextInt(100) - 50;
+                index.update(row, kinds[row], values[row]);
+                int from = random.nextInt(rows), to = from + random.nextInt(rows - from);
+                ColumnIndex.Stats stats = new ColumnIndex.Stats(), expected = new ColumnIndex.Stats();
+                index.query(from, to, stats);
+                for (int r = from; r <= to; r++) {
+                    if (kinds[r] == ColumnIndex.VALUE) expected.add(values[r]);
+                    if (kinds[r] == ColumnIndex.ERROR) expected.errors++;
+                }
+                assertEquals(expected.sum, stats.sum);
+                assertEquals(expected.count, stats.count);
+                assertEquals(expected.errors, stats.errors);
+                assertEquals(expected.min, stats.min);
+                assertEquals(expected.max, stats.max);
+            }
+        }
+
+        @Test
+        void testSparseColumn() {
+            ColumnIndex index = new ColumnIndex(1 << 30);
+            index.update(5, ColumnIndex.VALUE, 2);
+            index.update(1_000_000, ColumnIndex.VALUE, 3);
+            index.update((1 << 30) - 1, ColumnIndex.ERROR, 0);
+            index.update(77, ColumnIndex.NONE, 0); // an empty row allocates nothing
+            assertTrue(index.nodes() < 100, "nodes: " + index.nodes());
+            ColumnIndex.Stats stats = new ColumnIndex.Stats();
+            index.query(0, 999_999_999, stats);
+            assertEquals(5, stats.sum);
+            assertEquals(2, stats.count);
+            assertEquals(0, stats.errors);
+            stats = new ColumnIndex.Stats();
+            index.query(6, Integer.MAX_VALUE, stats); // clamped to the rows of the column
+            assertEquals(3, stats.max);
+            assertEquals(1, stats.errors);
+        }
+    }
+
+    @Nested
+    class CellRefTest {
+
+        @Test
+        void testParseRegion() {
+            String text = "=12+AB34*c5";
+            assertEquals(CellRef.pack(27, 34), CellRef.parse(text, 4, 8));
+            assertEquals(8, CellRef.end(text, 4, text.length()));
+            assertEquals(CellRef.pack(2, 5), CellRef.parse(text, 9, text.length()));
+            assertEquals(CellRef.INVALID, CellRef.parse(text, 1, 3));
+            assertEquals(CellRef.INVALID, CellRef.parse(text, 4, 6));
+            assertEquals(CellRef.INVALID, CellRef.parse("A99999999999", 0, 12));
+        }
+
+        @Test
+        void testDigits() {
+            assertEquals(0, CellRef.parseDigits("0", 0, 1));
+            assertEquals(Integer.MAX_VALUE, CellRef.parseDigits("x2147483647", 1, 11));
+            assertEquals(-1, CellRef.parseDigits("2147483648", 0, 10));
+            assertEquals(-1, CellRef.parseDigits("-1", 0, 2));
+            assertEquals(-1, CellRef.parseDigits("", 0, 0));
+        }
+    }
+
+    @Nested
+    class FormulaTest {
+
+        @Test
+        void testEvaluate() {
+            Ex2Sheet sheet = new Ex2Sheet(1, 1);
+            assertEquals(14, Formula.compile("=2+3*4").evaluate(sheet));
+            assertEquals(20, Formula.compile("=(2+3)*4").evaluate(sheet));
+            assertEquals(6, Formula.compile("=-(1+2)*-2").evaluate(sheet));
+            assertEquals(5, Formula.compile("=2--3").evaluate(sheet));
+            assertEquals(2, Formula.compile("=.5*4").evaluate(sheet));
+            assertEquals(2.5, Formula.compile("= 10 / 4").evaluate(sheet));
+            assertEquals(1, Formula.compile("=8-4-2-1").evaluate(sheet));
+            assertThrows(ArithmeticException.class, () -> Formula.compile("=1/(2-2)").evaluate(sheet));
+            assertEquals(1, Formula.compile("=1+1==2").evaluate(sheet));
+            assertEquals(0, Formula.compile("=(1<2)*(2!=2)").evaluate(sheet));
+            assertEquals(8, Formula.compile("=POW(2,3)").evaluate(sheet));
+            assertEquals(-1, Formula.compile("=cos(sin(0)+2*0)*if(0,1,-1)").evaluate(sheet));
+            assertEquals(3, Formula.compile("=if(1>=1, 3, 1/0)").evaluate(sheet));
+            assertThrows(ArithmeticException.class, () -> Formula.compile("=pow(0-1, 0.5)").evaluate(sheet));
+        }
+
+        @Test
+        void testNestingDepthLimit() {
+            int n = Formula.MAX_NESTING;
+            Ex2Sheet sheet = new Ex2Sheet(2, 2);
+            assertEquals(1, Formula.compile("=" + "(".repeat(n) + "1" + ")".repeat(n)).evaluate(sheet));
+            assertEquals(1, Formula.compile("=" + "-".repeat(n) + "1").evaluate(sheet));
+            assertEquals(1, Formula.compile("=" + "sin(".repeat(n) + "0" + ")".repeat(n) + "+1").evaluate(sheet));
+            assertThrows(IllegalArgumentException.class, () -> Formula.compile("=" + "(".repeat(n + 1) + "1" + ")".repeat(n + 1)));
+            // far past the limit a formula is invalid, rather than overflowing the stack (e.g., in set() or load())
+            int deep = 100 * n;
+            for (String data : new String[]{"=" + "(".repeat(deep) + "1" + ")".repeat(deep), "=" + "-".repeat(deep) + "1",
+                    "=" + "sin(".repeat(deep) + "0" + ")".repeat(deep)}) {
+                assertThrows(IllegalArgumentException.class, () -> Formula.compile(data));
+                sheet.set(1, 1, data);
+                assertEquals(Ex2Utils.ERR_FORM_FORMAT, sheet.get(1, 1).getType());
+                assertEquals("ERR_FORM!!!", sheet.value(1, 1));
+            }
+
+            // chains of operators are not nested, they are not limited (walked with loops, interpreted and compiled)
+            int terms = 5000;
+            sheet.set(0, 0, "2");
+            sheet.set(1, 0, "=1" + "+1".repeat(terms - 1));
+            sheet.set(1, 1, "=1" + "+A0".repeat(terms - 1));
+            sheet.set(0, 1, "=A0" + "*1".repeat(terms) + "-B0/2");
+            assertEquals(terms + ".0", sheet.value(1, 0));
+            assertEquals((2.0 * terms - 1) + "", sheet.value(1, 1));
+            assertEquals((2.0 - terms / 2.0) + "", sheet.value(0, 1));
+            Formula chain = Formula.compile("=1" + "+A0".repeat(terms - 1) + "*A0");
+            assertTrue(chain.lastRead(0, 0));
+            assertTrue(chain.toString().endsWith(")+A0)+(A0*A0)"));
+            double interpreted = chain.interpret(sheet);
+            int threshold = FormulaCompiler.getThreshold();
+            FormulaCompiler.setThreshold(0);
+            try {
+                assertEquals(interpreted, chain.evaluate(sheet));
+                assertTrue(chain.isCompiled());
+            } finally {
+                FormulaCompiler.setThreshold(threshold);
+            }
+            assertEquals(1 + 2.0 * (terms - 2) + 4, interpreted);
+        }
+
+        @Test
+        void testCompileErrors() {
+            String[] wrong = {"=", "=1+", "=1+*2", "=(1+2", "=1+2)", "=1.2.3", "=A", "=2(3)", "=()", "=A1B2", "=3$",
+                    "=A1:B2", "=SUM()", "=SUM(A1:)", "=SUM(A1:B2", "=FOO(1)", "=SUM(A1:B2:C3)", "=SUM(1,)",
+                    "=if(1,2)", "=IF(1,2,3,4)", "=sin()", "=pow(1)", "=cos(A1:A2)", "=1<", "=1=2", "=1<>2", "=1<2<3"};
+            for (String data : wrong) {
+                assertThrows(IllegalArgumentException.class, () -> Formula.compile(data), data);
+                assertEquals(SCell.ERR_WRONG_FORM, new SCell(data).getType(), data);
+            }
+        }
+
+        @Test
+        void testMultiLetterReferences() {
+            Formula.Ref[] refs = Formula.compile("=AA100+ab2*Z123456").references();
+            assertEquals(26, refs[0].x);
+            assertEquals(100, refs[0].y);
+            assertEquals(27, refs[1].x);
+            assertEquals(25, refs[2].x);
+            assertEquals(123456, refs[2].y);
+
+            Ex2Sheet sheet = new Ex2Sheet(1000, 100_000, true);
+            sheet.set(26, 99_999, "4");
+            sheet.set(701, 0, "=AA99999*2");
+            assertEquals("8.0", sheet.value(701, 0));
+            assertArrayEquals(new int[]{701, 0}, sheet.parseEntry("zz0"));
+            assertNull(sheet.parseEntry("ALM0"));
+            assertNull(sheet.parseEntry("A100000"));
+        }
+
+        @Test
+        void testOptimizedForm() {
+            Formula formula = Formula.compile("=(2*3+A1)*(2*3+A1)/4");
+            assertEquals("=($0*$0)/4.0; $0=6.0+A1", formula.toString());
+            assertEquals(1, formula.references().length);
+            assertEquals("=A1", Formula.compile("=if(2>1, A1, B2)").toString());
+            assertFalse(Formula.compile("=if(2>1, A1, B2)").isConditional());
+            assertEquals("=IF(A1,$0,-$0); $0=SUM(B0:C3,1.0)", Formula.compile("=if(A1, sum(B0:C3, 2-1), -sum(B0:C3, 1))").toString());
+            assertEquals("=1.0/0.0", Formula.compile("=1/(3-3)").toString());
+            assertTrue(Formula.compile("=pow(2, 3)*cos(0)").isConstant());
+            assertEquals("=8.0", Formula.compile("=pow(2, 3)*cos(0)").toString());
+            assertFalse(Formula.compile("=SUM(A1:A2)").isConstant());
+
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 1, "2");
+            sheet.set(1, 1, "=(2*3+A1)*(2*3+A1)/4");
+            sheet.set(2, 1, "=if(A1>1, (A1+1)*(A1+1), A1+1)");
+            assertEquals("16.0", sheet.value(1, 1));
+            assertEquals("9.0", sheet.value(2, 1));
+            assertEquals("=($0*$0)/4.0; $0=6.0+A1", sheet.optimized(1, 1));
+            assertEquals("2", sheet.optimized(0, 1));
+            sheet.set(0, 1, "0");
+            assertEquals("9.0", sheet.value(1, 1));
+            assertEquals("1.0", sheet.value(2, 1));
+        }
+
+        @Test
+        void testConstantsKeptOnInvalidate() {
+            Ex2Sheet sheet = new Ex2Sheet(2, 2);
+            sheet.set(0, 0, "=2*3");
+            sheet.set(0, 1, "=1/0");
+            sheet.set(1, 0, "=A0+1");
+            sheet.set(1, 1, "x");
+            sheet.eval();
+            sheet.invalidate();
+            assertEquals("6.0", sheet.value(0, 0));
+            assertEquals("ERR_FORM!!!", sheet.value(0, 1));
+            assertEquals("7.0", sheet.value(1, 0));
+            assertEquals("x", sheet.value(1, 1));
+        }
+
+        @Test
+        void testReferences() {
+            Formula.Ref[] refs = Formula.compile("=A1*(b2-A1)").references();
+            assertEquals(3, refs.length);
+            assertEquals(0, refs[0].x);
+            assertEquals(1, refs[0].y);
+            assertEquals(1, refs[1].x);
+            assertEquals(2, refs[1].y);
+        }
+
+        @Test
+        void testReferencedValues() {
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 0, "1e3");
+            sheet.set(0, 1, "=A0/4");
+            sheet.set(0, 2, "=A1*C2");
+            assertEquals("250.0", sheet.value(0, 1));
+            assertEquals("ERR_FORM!!!", sheet.value(0, 2));
+            sheet.set(2, 2, "2");
+            assertEquals("500.0", sheet.value(0, 2));
+        }
+    }
+
+    @Nested
+    class FormulaCompilerTest {
+
+        @Test
+        void testCompiledMatchesInterpreter() {
+            java.util.Random random = new java.util.Random(7);
+            Ex2Sheet sheet = new Ex2Sheet(4, 4);
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 4; y++) {
+                    sheet.set(x, y, "" + (random.nextInt(7) - 2) / 2.0);
+                }
+            }
+            sheet.eval();
+            for (int i = 0; i < 300; i++) {
+                Formula formula = Formula.compile("=" + randomExpression(random, 5));
+                CompiledFormula code = FormulaCompiler.compile(formula);
+                double[] values = new double[formula.references().length];
+                for (Formula.Ref ref : formula.references()) {
+                    values[ref.slot] = sheet.numberAt(ref.x, ref.y);
+                }
+                try {
+                    double expected = formula.interpret(sheet);
+                    assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(code.evaluate(values)));
+                } catch (ArithmeticException e) {
+                    assertThrows(ArithmeticException.class, () -> code.evaluate(values));
+                }
+            }
+        }
+
+        @Test
+        void testSheetValuesMatchInterpreter() {
+            String[] a = {"3", "-1.5", "=A0*A1-2", "=(A2+A0)/A1", "=-A2*(A3-A0)", "=A4/(A0-3)", "=A3+C0", "=A2*A2*A2"};
+            String[] b = {"=A0+A1", "=B0/A4", "=A6", "=B0-B1*2", "=1/(A0-3)", "=-B3", "=A7/B3", "=B6+B6"};
+            int threshold = FormulaCompiler.getThreshold();
+            try {
+                FormulaCompiler.setThreshold(-1);
+                Ex2Sheet interpreted = new Ex2Sheet(3, 8);
+                FormulaCompiler.setThreshold(0);
+                Ex2Sheet compiled = new Ex2Sheet(3, 8);
+                for (int y = 0; y < 8; y++) {
+                    interpreted.set(0, y, a[y]);
+                    compiled.set(0, y, a[y]);
+                    interpreted.set(1, y, b[y]);
+                    compiled.set(1, y, b[y]);
+                }
+                FormulaCompiler.setThreshold(-1);
+                interpreted.eval();
+                FormulaCompiler.setThreshold(0);
+                compiled.eval();
+                int compiledFormulas = 0;
+                for (int x = 0; x < 3; x++) {
+                    for (int y = 0; y < 8; y++) {
+                        assertEquals(interpreted.value(x, y), compiled.value(x, y));
+                        Formula formula = compiled.get(x, y).getFormula();
+                        if (formula != null && formula.isCompiled()) compiledFormulas++;
+                    }
+                }
+                assertTrue(compiledFormulas > 0);
+                assertFalse(interpreted.get(0, 6).getFormula().isCompiled());
+            } finally {
+                FormulaCompiler.setThreshold(threshold);
+            }
+        }
+
+        @Test
+        void testSharedSubtreesCompiled() {
+            Ex2Sheet sheet = new Ex2Sheet(2, 2);
+            sheet.set(0, 0, "3");
+            sheet.set(0, 1, "-2");
+            sheet.eval();
+            Formula formula = Formula.compile("=(A0*A1+1)/(A0*A1+1)+sin(A0*A1)*(A0-A1)-(A0-A1)");
+            assertEquals(3, formula.sharedCount()); // A0*A1+1, A0*A1 and A0-A1
+            CompiledFormula code = FormulaCompiler.compile(formula);
+            double[] values = new double[formula.references().length];
+            for (Formula.Ref ref : formula.references()) {
+                values[ref.slot] = sheet.numberAt(ref.x, ref.y);
+            }
+            assertEquals(formula.interpret(sheet), code.evaluate(values));
+            assertEquals(1 + Math.sin(-6) * 5 - 5, code.evaluate(values), 1e-12);
+        }
+
+        @Test
+        void testPromotedAfterThreshold() {
+            int threshold = FormulaCompiler.getThreshold();
+            try {
+                FormulaCompiler.setThreshold(2);
+                Ex2Sheet sheet = new Ex2Sheet(1, 1);
+                sheet.set(0, 0, "3");
+                sheet.eval();
+                Formula formula = Formula.compile("=1/4+2*A0"); // not a constant, which would be folded
+                assertEquals(6.25, formula.evaluate(sheet));
+                assertEquals(6.25, formula.evaluate(sheet));
+                assertFalse(formula.isCompiled());
+                assertEquals(6.25, formula.evaluate(sheet));
+                assertTrue(formula.isCompiled());
+            } finally {
+                FormulaCompiler.setThreshold(threshold);
+            }
+        }
+
+        private String randomExpression(java.util.Random random, int depth) {
+            int kind = depth == 0 ? random.nextInt(2) : random.nextInt(8);
+            return switch (kind) {
+                case 0 -> random.nextInt(4) == 0 ? "0" : "" + random.nextInt(100) / 8.0;
+                case 1 -> "" + (char) ('A' + random.nextInt(4)) + random.nextInt(4);
+                case 2 -> "-" + randomExpression(random, depth - 1);
+                case 3 -> "(" + randomExpression(random, depth - 1) + ")";
+                case 4 -> "(" + randomExpression(random, depth - 1) + new String[]{"<", ">", "==", "!=", "<=", ">="}[random.nextInt(6)]
+                        + randomExpression(random, depth - 1) + ")";
+                case 5 -> (random.nextBoolean() ? "sin(" : "cos(") + randomExpression(random, depth - 1) + ")";
+                case 6 -> "pow(" + randomExpression(random, depth - 1) + "," + randomExpression(random, depth - 1) + ")";
+                default -> randomExpression(random, depth - 1) + "+-*/".charAt(random.nextInt(4)) + randomExpression(random, depth - 1);
+            };
+        }
+    }
+
+    @Nested
+    class RecalcWorkerTest {
+
+        @Test
+        void testEditsPublished() throws InterruptedException {
+            try (RecalcWorker worker = new RecalcWorker(new Ex2Sheet(3, 3))) {
+                worker.setWindow(0, 0, 3, 3);
+                worker.submit(0, 0, "2");
+                long sequence = worker.submit(0, 1, "=A0*3");
+                SheetSnapshot snapshot = await(worker, sequence);
+                assertEquals("6.0", snapshot.value(0, 1));
+                assertEquals("=A0*3", snapshot.data(0, 1));
+                assertEquals(SCell.FORM, snapshot.type(0, 1));
+                assertFalse(snapshot.covers(3, 0));
+
+                worker.setWindow(1, 1, 3, 3); // a moved window is published without an edit
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                while (!worker.snapshot().covers(3, 3) && System.nanoTime() < deadline) Thread.sleep(1);
+                assertFalse(worker.snapshot().covers(0, 1));
+                assertEquals("", worker.snapshot().value(3, 3)); // out of the sheet
+            }
+        }
+
+        @Test
+        void testBurstCoalesced() throws InterruptedException {
+            try (RecalcWorker worker = new RecalcWorker(new Ex2Sheet(3, 3))) {
+                worker.setWindow(0, 0, 3, 3);
+                java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+                java.util.concurrent.CountDownLatch blocked = new java.util.concurrent.CountDownLatch(1);
+                worker.execute(sheet -> {
+                    started.countDown();
+                    try {
+                        blocked.await(); // stands for a long recalculation
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                assertTrue(started.await(5, java.util.concurrent.TimeUnit.SECONDS));
+                long sequence = 0;
+                for (int i = 0; i < 50; i++) {
+                    sequence = worker.submit(0, 0, "" + i);
+                }
+                worker.submit(1, 0, "=A0+1");
+                sequence = worker.submit(2, 0, "=B0*2");
+                blocked.countDown();
+                SheetSnapshot snapshot = await(worker, sequence);
+                assertEquals("100.0", snapshot.value(2, 0));
+                assertEquals(2, worker.recalculations()); // one after the blocking task, one for the whole burst
+            }
+        }
+
+        @Test
+        void testSnapshotMarksDirtyCellsPending() {
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 0, "1");
+            sheet.set(0, 1, "=A0+1");
+            sheet.eval();
+            sheet.set(0, 0, "5");
+            SheetSnapshot snapshot = SheetSnapshot.of(sheet, 0, 0, 4, 2, 7);
+            assertTrue(snapshot.isPending(0, 0));
+            assertTrue(snapshot.isPending(0, 1));
+            assertEquals("2.0", snapshot.value(0, 1)); // the previous value, while it is recomputed
+            assertFalse(snapshot.isPending(1, 1));
+            assertEquals("", snapshot.value(3, 0)); // out of the sheet
+            assertEquals(7, snapshot.applied());
+            sheet.eval();
+            snapshot = SheetSnapshot.of(sheet, 0, 0, 4, 2, 7);
+            assertFalse(snapshot.isPending(0, 1));
+            assertEquals("6.0", snapshot.value(0, 1));
+        }
+
+        // Waits for a snapshot with an edit applied and no pending cell in its window
+        private SheetSnapshot await(RecalcWorker worker, long sequence) throws InterruptedException {
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (System.nanoTime() < deadline) {
+                SheetSnapshot snapshot = worker.snapshot();
+                boolean pending = false;
+                for (int x = 0; x < 3; x++) {
+                    for (int y = 0; y < 3; y++) {
+                        pending |= snapshot.covers(x, y) && snapshot.isPending(x, y);
+                    }
+                }
+                if (snapshot.applied() >= sequence && !pending) return snapshot;
+                Thread.sleep(1);
+            }
+            return fail("No snapshot with the edit " + sequence);
+        }
+    }
+
+    @Nested
+    class Ex2BatchTest {
+
+        @Test
+        void testEvaluateFiles() throws java.io.IOException {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("ex2batch");
+            dir.toFile().deleteOnExit();
+            Ex2Sheet sheet = new Ex2Sheet(3, 3);
+            sheet.set(0, 0, "2");
+            sheet.set(1, 0, "=A0*3");
+            sheet.set(0, 2, "a, \"b\"");
+            sheet.set(2, 1, "=C1");
+            String file = dir.resolve("s.txt").toString();
+            sheet.save(file);
+
+            String csv = Ex2Batch.outputName(file, null, Ex2Batch.Format.CSV);
+            assertEquals(dir.resolve("s.csv").toString(), csv);
+            Ex2Batch.Result result = Ex2Batch.evaluate(file, csv, Ex2Batch.Format.CSV, 3, 3, false);
+            assertNull(result.error());
+            assertEquals(4, result.cells());
+            assertEquals(java.util.List.of("2,6.0,", ",,ERR_CYCLE!!!", "\"a, \"\"b\"\"\",,"),
+                    java.nio.file.Files.readAllLines(java.nio.file.Path.of(csv)));
+
+            String text = Ex2Batch.outputName(file, dir.toString(), Ex2Batch.Format.TEXT);
+            assertNull(Ex2Batch.evaluate(file, text, Ex2Batch.Format.TEXT, 3, 3, true).error());
+            Ex2Sheet values = new Ex2Sheet(3, 3);
+            values.load(text);
+            assertEquals("6.0", values.get(1, 0).getData());
+            assertEquals(Ex2Utils.NUMBER, values.get(1, 0).getType());
+
+            String binary = Ex2Batch.outputName(file, null, Ex2Batch.Format.BINARY);
+            assertEquals(4, Ex2Batch.evaluate(file, binary, Ex2Batch.Format.BINARY, 3, 3, false).cells());
+            Ex2Sheet loaded = new Ex2Sheet(3, 3);
+            loaded.load(binary);
+            assertEquals("6.0", loaded.value(1, 0));
+            for (String f : new String[]{file, csv, text, binary}) new java.io.File(f).deleteOnExit();
+
+            Ex2Batch.Result missing = Ex2Batch.evaluate(dir.resolve("none.txt").toString(), csv, Ex2Batch.Format.CSV, 3, 3, false);
+            assertInstanceOf(java.io.IOException.class, missing.error());
+        }
+
+        @Test
+        void testOptions() {
+            assertArrayEquals(new int[]{9, 17}, Ex2Batch.parseSize("9x17"));
+            for (String size : new String[]{"100", "0x5", "5x0", "-3x5", "5x-3", "x5", "5x", "axb", "5x5x5"}) {
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Ex2Batch.parseSize(size));
+                assertEquals("Invalid -size: " + size, e.getMessage());
+            }
+            assertTrue(Ex2Batch.parseStorage("sparse"));
+            assertFalse(Ex2Batch.parseStorage("dense"));
+            assertThrows(IllegalArgumentException.class, () -> Ex2Batch.parseStorage("sprase"));
+        }
+
+        @Test
+        void testDimensions() throws java.io.IOException {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("ex2batch");
+            dir.toFile().deleteOnExit();
+            Ex2Sheet sheet = new Ex2Sheet(30, 1000, true);
+            sheet.set(25, 999, "=A0+1");
+            sheet.set(0, 0, "4");
+            sheet.set(2, 1, "x");
+            String text = dir.resolve("big.txt").toString(), binary = dir.resolve("big.ex2b").toString();
+            sheet.save(text);
+            sheet.saveBinary(binary, false);
+            String csv = dir.resolve("big.csv").toString();
+            for (String f : new String[]{text, binary, csv}) new java.io.File(f).deleteOnExit();
+
+            // the dimensions of a binary file are those it stores, the cells out of a sheet fail the file
+            Ex2Batch.Result result = Ex2Batch.evaluate(binary, csv, Ex2Batch.Format.CSV, 0, 0, true);
+            assertNull(result.error());
+            assertEquals(3, result.cells());
+            java.util.List<String> lines = java.nio.file.Files.readAllLines(java.nio.file.Path.of(csv));
+            assertEquals(1000, lines.size());
+            assertEquals("4" + ",".repeat(25), lines.get(0));
+            assertEquals(",,x" + ",".repeat(23), lines.get(1));
+            assertEquals(",".repeat(25), lines.get(2));
+            assertEquals(",".repeat(25) + "5.0", lines.get(999));
+            Ex2Batch.Result dropped = Ex2Batch.evaluate(text, csv, Ex2Batch.Format.CSV, 0, 0, false);
+            assertInstanceOf(java.io.IOException.class, dropped.error());
+            assertTrue(dropped.error().getMessage().startsWith("1 cells out of the 9x17 sheet"));
+            assertNull(Ex2Batch.evaluate(text, csv, Ex2Batch.Format.CSV, 30, 1000, true).error());
+            assertEquals(lines, java.nio.file.Files.readAllLines(java.nio.file.Path.of(csv)));
+        }
+    }
+
+    @Nested
+    class ConcurrentSheetTest {
+
+        @Test
+        void testSheetSemantics() throws java.io.IOException {
+            ConcurrentSheet sheet = new ConcurrentSheet(4, 4);
+            sheet.set(0, 0, "2");
+            sheet.set(0, 1, "=A0*3");
+            sheet.set(1, 0, "=B1");
+            sheet.set(1, 1, "=B0");
+            assertEquals("6.0", sheet.value(0, 1));
+            assertEquals(4, sheet.version());
+            assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get("B0").getType());
+            assertEquals(-1, sheet.depth()[1][0]);
+            assertEquals(1, sheet.depth()[0][1]);
+            assertThrows(UnsupportedOperationException.class, () -> sheet.get(0, 0).setData("3"));
+            assertNull(sheet.get(4, 0));
+
+            java.io.File file = java.io.File.createTempFile("ex2concurrent", ".txt");
+            file.deleteOnExit();
+            sheet.save(file.getPath());
+            ConcurrentSheet loaded = new ConcurrentSheet(4, 4);
+            loaded.set(0, 0, "5");
+            loaded.load(file.getPath());
+            assertEquals("6.0", loaded.eval(0, 1));
+        }
+
+        @Test
+        void testReadersResponsiveUnderSustainedWrites() throws InterruptedException {
+            int writers = 4;
+            ConcurrentSheet sheet = new ConcurrentSheet(writers * 8, 200);
+            for (int y = 1; y < 200; y++) {
+                sheet.set(0, y, "=A" + (y - 1) + "+1"); // a chain, so every recalculation takes a while
+            }
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            java.util.List<Thread> threads = new java.util.ArrayList<>();
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            for (int w = 0; w < writers; w++) {
+                int x = w * 8;
+                threads.add(new Thread(() -> {
+                    for (int n = 0; !done.get() && System.nanoTime() < deadline; n++) sheet.set(x, 0, "" + n);
+                }));
+            }
+            threads.forEach(Thread::start);
+            int reads = 0;
+            try {
+                for (; reads < 100 && System.nanoTime() < deadline; reads++) {
+                    sheet.value(0, 199); // a read applies at most a single batch of edits, then returns
+                }
+            } finally {
+                done.set(true);
+                for (Thread thread : threads) thread.join();
+            }
+            assertEquals(100, reads, "a reader waited for the writers");
+            sheet.eval();
+            assertEquals(Double.parseDouble(sheet.value(0, 0)) + 199, Double.parseDouble(sheet.value(0, 199)));
+        }
+
+        @Test
+        void testSnapshotCopiesChangedRegions() throws java.io.IOException {
+            ConcurrentSheet sheet = new ConcurrentSheet(100, 100);
+            sheet.set(0, 0, "1");
+            sheet.set(50, 50, "=A0*2");
+            sheet.set(90, 90, "3");
+            sheet.eval();
+            ConcurrentSheet.Snapshot before = sheet.snapshot();
+            assertNull(before.region(20, 20)); // never set
+            assertEquals("", before.value(20, 20));
+            assertEquals(Ex2Utils.TEXT, before.type(20, 20));
+
+            sheet.set(0, 1, "=A0+1");
+            sheet.set(0, 0, "5");
+            sheet.eval();
+            ConcurrentSheet.Snapshot after = sheet.snapshot();
+            assertNotSame(before.region(0, 0), after.region(0, 0));
+            assertNotSame(before.region(50, 50), after.region(50, 50)); // a dependent of A0
+            assertSame(before.region(90, 90), after.region(90, 90));
+            assertEquals("", before.value(0, 1)); // the old snapshot is unchanged
+            assertEquals("2.0", before.value(50, 50));
+            assertEquals("6.0", after.value(0, 1));
+            assertEquals("10.0", after.value(50, 50));
+            assertEquals("3", after.value(90, 90));
+
+            java.io.File file = java.io.File.createTempFile("ex2regions", ".txt");
+            file.deleteOnExit();
+            sheet.save(file.getPath());
+            ConcurrentSheet loaded = new ConcurrentSheet(100, 100);
+            loaded.load(file.getPath());
+            assertEquals("10.0", loaded.value(50, 50));
+            assertNull(loaded.snapshot().region(20, 20));
+        }
+
+        @Test
+        void testConcurrentWritersAndReaders() throws InterruptedException {
+            int writers = 4, readers = 4, edits = 2000;
+            ConcurrentSheet sheet = new ConcurrentSheet(writers * 8, 2); // a writer per region
+            StringBuilder sum = new StringBuilder("=0");
+            for (int w = 0; w < writers; w++) {
+                String name = CellRef.columnName(w * 8);
+                sheet.set(w * 8, 0, "0");
+                sheet.set(w * 8, 1, "=" + name + "0*2");
+                sum.append('+').append(name).append('0');
+            }
+            sheet.set(1, 0, sum.toString());
+            sheet.eval();
+
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            java.util.List<String> failures = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+            java.util.List<Thread> threads = new java.util.ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int x = w * 8;
+                threads.add(new Thread(() -> {
+                    for (int n = 1; n <= edits; n++) sheet.set(x, 0, "" + n);
+                }));
+            }
+            for (int r = 0; r < readers; r++) {
+                threads.add(new Thread(() -> {
+                    double[] last = new double[writers];
+                    long version = 0;
+                    while (!done.get()) {
+                        ConcurrentSheet.Snapshot snapshot = sheet.snapshot();
+                        if (snapshot.applied() < version) failures.add("version went back: " + snapshot.applied());
+                        version = snapshot.applied();
+                        double total = 0;
+                        for (int w = 0; w < writers; w++) {
+                            double a = Double.parseDouble(snapshot.value(w * 8, 0));
+                            double b = Double.parseDouble(snapshot.value(w * 8, 1));
+                            if (b != 2 * a) failures.add("torn formula: " + a + " " + b);
+                            if (a < last[w]) failures.add("value went back: " + last[w] + " " + a);
+                            last[w] = a;
+                            total += a;
+                        }
+                        if (Double.parseDouble(snapshot.value(1, 0)) != total) failures.add("torn sum: " + total);
+                        sheet.value(0, 0); // the non blocking read path
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (int w = 0; w < writers; w++) threads.get(w).join();
+            // Once the writers are done, reads alone must publish their last edits (never stale forever)
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (!sheet.value(1, 0).equals("" + (double) writers * edits) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            done.set(true);
+            for (Thread thread : threads) thread.join();
+            assertEquals(java.util.List.of(), failures);
+            assertEquals("" + (double) writers * edits, sheet.value(1, 0));
+            for (int w = 0; w < writers; w++) {
+                assertEquals("" + edits, sheet.value(w * 8, 0));
+                assertEquals("" + 2.0 * edits, sheet.value(w * 8, 1));
+            }
+            assertEquals(writers * (edits + 2) + 1, sheet.version());
+        }
     }
 
     @Nested
@@ -232,18 +1692,38 @@ public class Ex2Test {
 
         @Test
         void testInvalidCellOutOfRangeRow() {
-            CellEntry cell = new CellEntry("A100");
-            assertFalse(cell.isValid());
-            assertThrows(IllegalStateException.class, cell::getX);
-            assertThrows(IllegalStateException.class, cell::getY);
+            for (String index : new String[]{"A0", "A2147483648", "A-1", "A+1"}) {
+                CellEntry cell = new CellEntry(index);
+                assertFalse(cell.isValid(), index);
+                assertThrows(IllegalStateException.class, cell::getX);
+                assertThrows(IllegalStateException.class, cell::getY);
+            }
         }
 
         @Test
         void testInvalidCellOutOfRangeColumn() {
-            CellEntry cell = new CellEntry("AA1");
-            assertFalse(cell.isValid());
-            assertThrows(IllegalStateException.class, cell::getX);
-            assertThrows(IllegalStateException.class, cell::getY);
+            for (String index : new String[]{"ZZZZZZZ1", "A1B", "\u00c91"}) {
+                CellEntry cell = new CellEntry(index);
+                assertFalse(cell.isValid(), index);
+                assertThrows(IllegalStateException.class, cell::getX);
+                assertThrows(IllegalStateException.class, cell::getY);
+            }
+        }
+
+        @Test
+        void testMultiLetterColumnsAndLargeRows() {
+            CellEntry cell = new CellEntry("aa100");
+            assertTrue(cell.isValid());
+            assertEquals(26, cell.getX());
+            assertEquals(99, cell.getY());
+            assertEquals("AA100", cell.toString());
+            assertEquals(701, new CellEntry("ZZ1").getX());
+            assertEquals(702, new CellEntry("AAA1").getX());
+            assertEquals(Integer.MAX_VALUE - 1, new CellEntry("Z2147483647").getY());
+            assertEquals(Integer.MAX_VALUE, new CellEntry("FXSHRXX1").getX());
+            for (int x : new int[]{0, 25, 26, 701, 702, 18277, 18278, Integer.MAX_VALUE}) {
+                assertEquals(x, new CellEntry(CellRef.columnName(x) + "1").getX(), "" + x);
+            }
         }
 
         @Test
@@ -254,6 +1734,16 @@ public class Ex2Test {
             assertEquals(2, cell.getY());
         }
 
+        @Test
+        void testInternedEntries() {
+            CellEntry cell = CellEntry.of("B7");
+            assertSame(cell, CellEntry.of("B7"));
+            assertEquals(1, cell.getX());
+            assertEquals(6, cell.getY());
+            assertFalse(CellEntry.of("7B").isValid());
+            assertFalse(CellEntry.of(null).isValid());
+        }
+
         @Test
         void testToStringValidCell() {
             CellEntry cell = new CellEntry("c5");
@@ -262,7 +1752,7 @@ public class Ex2Test {
 
         @Test
         void testToStringInvalidCell() {
-            CellEntry cell = new CellEntry("Z123");
+            CellEntry cell = new CellEntry("Z0");
             assertEquals("", cell.toString());
         }
     }
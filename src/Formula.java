@@ -0,0 +1,690 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Represents a formula (e.g., "=A1*(3-A2)") compiled once into an immutable expression tree.
+ * The tree is made of number literals, cell references, unary minus, the binary operators + - * /
+ * (parentheses only shape the tree), the comparisons &lt; &gt; == != &lt;= &gt;= (1 if true, else 0), the functions
+ * if, sin, cos and pow, and the aggregate functions SUM, AVG, MIN, MAX and COUNT, whose arguments are
+ * expressions or ranges of cells (e.g., "=SUM(A1:C40)/COUNT(A1:C40,D1)"). Function names ignore case.
+ * if(condition, a, b) is lazy: it only evaluates (and reads the cells of) the branch it takes.
+ * The tree is optimized by FormulaOptimizer (constant folding and common subexpression elimination),
+ * toString() shows the optimized form.
+ * Evaluating a formula walks the tree directly over doubles, until it was evaluated
+ * FormulaCompiler.getThreshold() times: from then on it runs as JVM bytecode.
+ */
+public final class Formula {
+    static final int SUM = 0, AVG = 1, MIN = 2, MAX = 3, COUNT = 4, IF = 5, SIN = 6, COS = 7, POW = 8;
+    static final int LT = 0, GT = 1, EQ = 2, NE = 3, LE = 4, GE = 5;
+    private static final List<String> FUNCTIONS = Arrays.asList("SUM", "AVG", "MIN", "MAX", "COUNT", "IF", "SIN", "COS", "POW");
+    private static final List<String> COMPARISONS = Arrays.asList("<", ">", "==", "!=", "<=", ">=");
+    static final int MAX_NESTING = 200; // the maximal nesting of parentheses, signs and functions, parsed recursively
+    private final Node root;
+    private final Ref[] references;
+    private final Range[] ranges;
+    private final boolean conditional; // true if the formula has an if, so an evaluation may not read all its references
+    private final Shared[] shared; // the subtrees shared by the tree, evaluated at most once per evaluation
+    private int evaluations; // the number of interpreted evaluations
+    private boolean promoted; // true once compilation to bytecode was attempted
+    private CompiledFormula compiled; // the bytecode of this formula, null while interpreted
+    private double[] arguments; // the values of the references, passed to the bytecode
+
+    private Formula(Node root, FormulaOptimizer optimizer) {
+        this.root = root;
+        this.references = optimizer.references();
+        this.ranges = optimizer.ranges();
+        this.conditional = optimizer.isConditional();
+        this.shared = optimizer.shared();
+    }
+
+    /**
+     * Compiles the data of a formula cell. Whitespace is ignored.
+     * @param data the cell data, starting with "="
+     * @return the compiled formula
+     * @throws IllegalArgumentException if the data is not a valid formula, or if it nests more than MAX_NESTING
+     *                                  parentheses, signs and functions (chains of operators are not limited)
+     */
+    public static Formula compile(String data) {
+        if (data == null || !data.startsWith("=")) throw new IllegalArgumentException("Invalid form");
+        Parser parser = new Parser(data.substring(1).replaceAll("\\s", ""));
+        Node root = parser.comparison();
+        if (parser.pos != parser.text.length()) throw parser.error();
+        FormulaOptimizer optimizer = new FormulaOptimizer();
+        return new Formula(optimizer.optimize(root), optimizer);
+    }
+
+    /**
+     * Evaluates this formula, the referenced cells are read from the sheet.
+     * @param sheet the sheet holding the referenced cells (already computed)
+     * @return the value of this formula
+     * @throws IllegalArgumentException if a referenced cell is out of the sheet or not a number
+     * @throws ArithmeticException      in case of a division by zero
+     */
+    public double evaluate(Ex2Sheet sheet) {
+        if (root instanceof Num num) return num.value; // a folded constant, never compiled
+        if (!promoted) {
+            int threshold = FormulaCompiler.getThreshold();
+            if (threshold < 0 || evaluations++ < threshold) return interpret(sheet);
+            promoted = true;
+            compiled = FormulaCompiler.compile(this);
+            arguments = new double[references.length];
+        }
+        if (compiled == null) return interpret(sheet);
+        try {
+            for (int i = 0; i < references.length; i++) {
+                arguments[i] = sheet.numberAt(references[i].x, references[i].y);
+            }
+        } catch (RuntimeException e) {
+            // the bytecode reads every reference up front, the interpreter raises the error met first in order
+            return interpret(sheet);
+        }
+        return compiled.evaluate(arguments);
+    }
+
+    /**
+     * Evaluates this formula by walking the expression tree, even if it was compiled.
+     */
+    double interpret(Ex2Sheet sheet) {
+        for (Shared node : shared) {
+            node.cached = false;
+        }
+        return root.eval(sheet);
+    }
+
+    /**
+     * @return true if this formula runs as bytecode
+     */
+    boolean isCompiled() {
+        return compiled != null;
+    }
+
+    /**
+     * @return true if this formula reads no cell (it has no references and no ranges), so its value never changes
+     */
+    boolean isConstant() {
+        return references.length == 0 && ranges.length == 0;
+    }
+
+    /**
+     * @return true if this formula has an if, so an evaluation may not read all its references
+     */
+    boolean isConditional() {
+        return conditional;
+    }
+
+    /**
+     * Checks if the last evaluation of this formula read a cell: the cell is referenced outside of the
+     * branches of the ifs, or within a branch taken by the last evaluation.
+     */
+    boolean lastRead(int x, int y) {
+        return root.reads(x, y);
+    }
+
+    /**
+     * @return the cell references of this formula, in order of appearance (must not be modified)
+     */
+    Ref[] references() {
+        return references;
+    }
+
+    /**
+     * @return the ranges read by the aggregates of this formula, in order of appearance (must not be modified)
+     */
+    Range[] ranges() {
+        return ranges;
+    }
+
+    /**
+     * @return the root of the expression tree
+     */
+    Node root() {
+        return root;
+    }
+
+    /**
+     * @return the number of subtrees shared by the expression tree
+     */
+    int sharedCount() {
+        return shared.length;
+    }
+
+    /**
+     * Shows the optimized form of this formula, the shared subtrees are named $0, $1, ... and listed after
+     * it (e.g., "=($0*$0)/4.0; $0=6.0+A1").
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("=").append(root);
+        for (Shared node : shared) {
+            text.append("; ").append(node).append('=').append(node.node);
+        }
+        return text.toString();
+    }
+
+    // A node of the expression tree
+    abstract static class Node {
+        abstract double eval(Ex2Sheet sheet);
+
+        // Checks if the last evaluation of this node read the cell x,y
+        abstract boolean reads(int x, int y);
+
+        // The text of a node as an operand, in parentheses unless it is a single term
+        static String operand(Node node) {
+            return node instanceof BinOp || node instanceof Compare ? "(" + node + ")" : node.toString();
+        }
+    }
+
+    static final class Num extends Node {
+        final double value;
+
+        Num(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            return value;
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    // A reference to the cell x,y (e.g., "B3" is 1,3), slot is its position in references()
+    static final class Ref extends Node {
+        final int x, y, slot;
+
+        Ref(int x, int y, int slot) {
+            this.x = x;
+            this.y = y;
+            this.slot = slot;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            return sheet.numberAt(x, y);
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return this.x == x && this.y == y;
+        }
+
+        @Override
+        public String toString() {
+            return CellRef.columnName(x) + y;
+        }
+    }
+
+    static final class Neg extends Node {
+        final Node operand;
+
+        Neg(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            return -operand.eval(sheet);
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return operand.reads(x, y);
+        }
+
+        @Override
+        public String toString() {
+            return "-" + operand(operand);
+        }
+    }
+
+    // A binary operator. A chain of operators (e.g., "A0+A1+...+A4999") is parsed into a left-deep tree,
+    // it is walked with loops down its left operands, so a long chain does not overflow the stack
+    static final class BinOp extends Node {
+        private static final int RECURSIVE_CHAIN = 64; // the chains evaluated recursively, longer chains by a loop
+        final char op;
+        final Node left, right;
+        final int length; // the number of operators of the chain down the left operands, this one included
+
+        BinOp(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.length = left instanceof BinOp bin ? bin.length + 1 : 1;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            if (length < RECURSIVE_CHAIN) return apply(left.eval(sheet), right.eval(sheet));
+            BinOp[] chain = chain();
+            double value = chain[0].left.eval(sheet);
+            for (BinOp next : chain) {
+                value = next.apply(value, next.right.eval(sheet));
+            }
+            return value;
+        }
+
+        /**
+         * @return the operators of the chain ending with this one, from the lowest (whose left operand is
+         *         not an operator) to this one
+         */
+        BinOp[] chain() {
+            BinOp[] chain = new BinOp[length];
+            BinOp next = this;
+            for (int i = length - 1; i > 0; i--) {
+                chain[i] = next;
+                next = (BinOp) next.left;
+            }
+            chain[0] = next;
+            return chain;
+        }
+
+        // Applies the operator to its operand values
+        double apply(double a, double b) {
+            return switch (op) {
+                case '+' -> a + b;
+                case '-' -> a - b;
+                case '*' -> a * b;
+                default -> {
+                    if (b == 0) throw new ArithmeticException("Division by zero");
+                    yield a / b;
+                }
+            };
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            Node node = this;
+            for (; node instanceof BinOp bin; node = bin.left) {
+                if (bin.right.reads(x, y)) return true;
+            }
+            return node.reads(x, y);
+        }
+
+        @Override
+        public String toString() {
+            BinOp[] chain = chain();
+            StringBuilder text = new StringBuilder("(".repeat(length - 1)).append(operand(chain[0].left));
+            for (int i = 0; i < length; i++) {
+                if (i > 0) text.append(')');
+                text.append(chain[i].op).append(operand(chain[i].right));
+            }
+            return text.toString();
+        }
+    }
+
+    // A comparison (LT, GT, ...), 1 if true, else 0
+    static final class Compare extends Node {
+        final int op;
+        final Node left, right;
+
+        Compare(int op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            return FormulaCompiler.compare(left.eval(sheet), right.eval(sheet), op);
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return left.reads(x, y) || right.reads(x, y);
+        }
+
+        @Override
+        public String toString() {
+            return operand(left) + COMPARISONS.get(op) + operand(right);
+        }
+    }
+
+    // if(condition, a, b): a if the condition is not 0, else b. Only the branch taken is evaluated
+    static final class If extends Node {
+        private static final byte NONE = 0, THEN = 1, ELSE = 2;
+        final Node condition, then, otherwise;
+        private byte taken; // the branch taken by the last evaluation, NONE if the condition failed
+
+        If(Node condition, Node then, Node otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            taken = NONE;
+            taken = condition.eval(sheet) != 0 ? THEN : ELSE;
+            return taken == THEN ? then.eval(sheet) : otherwise.eval(sheet);
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return condition.reads(x, y) || (taken == THEN && then.reads(x, y)) || (taken == ELSE && otherwise.reads(x, y));
+        }
+
+        @Override
+        public String toString() {
+            return "IF(" + condition + "," + then + "," + otherwise + ")";
+        }
+    }
+
+    // A math function (SIN, COS or POW)
+    static final class Call extends Node {
+        final int function;
+        final Node[] args;
+
+        Call(int function, Node[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            double a = args[0].eval(sheet);
+            return switch (function) {
+                case SIN -> Math.sin(a);
+                case COS -> Math.cos(a);
+                default -> FormulaCompiler.pow(a, args[1].eval(sheet));
+            };
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            for (Node arg : args) {
+                if (arg.reads(x, y)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return call(FUNCTIONS.get(function), new Range[0], args);
+        }
+    }
+
+    // The rectangle of cells x1..x2, y1..y2 (inclusive, e.g., "A1:C40" is 0,1 to 2,40), read by an aggregate
+    static final class Range {
+        final int x1, y1, x2, y2;
+
+        Range(int x1, int y1, int x2, int y2) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+        }
+
+        boolean contains(int x, int y) {
+            return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+        }
+
+        @Override
+        public String toString() {
+            return CellRef.columnName(x1) + y1 + ":" + CellRef.columnName(x2) + y2;
+        }
+    }
+
+    // An aggregate function (SUM, AVG, ...) over ranges and single values
+    static final class Aggregate extends Node {
+        final int function;
+        final Range[] ranges;
+        final Node[] values;
+
+        Aggregate(int function, Range[] ranges, Node[] values) {
+            this.function = function;
+            this.ranges = ranges;
+            this.values = values;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            ColumnIndex.Stats stats = new ColumnIndex.Stats();
+            for (Range range : ranges) {
+                sheet.aggregate(range, stats);
+            }
+            for (Node value : values) {
+                stats.add(value.eval(sheet));
+            }
+            if (stats.count == 0 && (function == MIN || function == MAX)) throw new IllegalArgumentException("No numbers");
+            return switch (function) {
+                case SUM -> stats.sum;
+                case AVG -> {
+                    if (stats.count == 0) throw new ArithmeticException("Division by zero");
+                    yield stats.sum / stats.count;
+                }
+                case MIN -> stats.min;
+                case MAX -> stats.max;
+                default -> stats.count;
+            };
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            for (Range range : ranges) {
+                if (range.contains(x, y)) return true;
+            }
+            for (Node value : values) {
+                if (value.reads(x, y)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return call(FUNCTIONS.get(function), ranges, values);
+        }
+    }
+
+    // The text of a function call
+    private static String call(String name, Range[] ranges, Node[] args) {
+        StringBuilder text = new StringBuilder(name).append('(');
+        for (Range range : ranges) {
+            text.append(range).append(',');
+        }
+        for (Node arg : args) {
+            text.append(arg).append(',');
+        }
+        text.setCharAt(text.length() - 1, ')');
+        return text.toString();
+    }
+
+    // A subtree occurring more than once in the tree (see FormulaOptimizer), its value is cached by its first
+    // evaluation until the next evaluation of the formula
+    static final class Shared extends Node {
+        final int index; // its position in the shared subtrees of the formula
+        final Node node;
+        private boolean cached;
+        private double value;
+
+        Shared(int index, Node node) {
+            this.index = index;
+            this.node = node;
+        }
+
+        @Override
+        double eval(Ex2Sheet sheet) {
+            if (!cached) {
+                value = node.eval(sheet);
+                cached = true;
+            }
+            return value;
+        }
+
+        @Override
+        boolean reads(int x, int y) {
+            return node.reads(x, y);
+        }
+
+        @Override
+        public String toString() {
+            return "$" + index;
+        }
+    }
+
+    /**
+     * A recursive descent parser:
+     * comparison = expression (('&lt;' | '&gt;' | '==' | '!=' | '&lt;=' | '&gt;=') expression)?
+     * expression = term (('+' | '-') term)*
+     * term       = unary (('*' | '/') unary)*
+     * unary      = '-' unary | number | call | reference | '(' comparison ')'
+     * call       = name '(' argument (',' argument)* ')'
+     * argument   = reference ':' reference | comparison (ranges are only arguments of aggregates)
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos;
+        private int refs; // the number of references parsed
+        private int depth; // the nesting of the parentheses, signs and functions at pos, bounds the recursion
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Node comparison() {
+            Node node = expression();
+            int length = peek(1) == '=' ? 2 : 1;
+            int op = pos + length <= text.length() ? COMPARISONS.indexOf(text.substring(pos, pos + length)) : -1;
+            if (op < 0) return node;
+            pos += COMPARISONS.get(op).length();
+            return new Compare(op, node, expression());
+        }
+
+        Node expression() {
+            Node node = term();
+            while (peek() == '+' || peek() == '-') {
+                char op = text.charAt(pos++);
+                node = new BinOp(op, node, term());
+            }
+            return node;
+        }
+
+        Node term() {
+            Node node = unary();
+            while (peek() == '*' || peek() == '/') {
+                char op = text.charAt(pos++);
+                node = new BinOp(op, node, unary());
+            }
+            return node;
+        }
+
+        Node unary() {
+            char c = peek();
+            if (c == '-') {
+                pos++;
+                nest(1);
+                Node node = unary();
+                nest(-1);
+                return new Neg(node);
+            }
+            if (c == '(') {
+                pos++;
+                nest(1);
+                Node node = comparison();
+                nest(-1);
+                if (peek() != ')') throw error();
+                pos++;
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') return number();
+            if (Character.isLetter(c)) {
+                int name = CellRef.letters(text, pos, text.length());
+                if (name < text.length() && text.charAt(name) == '(') {
+                    nest(1);
+                    Node node = call();
+                    nest(-1);
+                    return node;
+                }
+                return reference();
+            }
+            throw error();
+        }
+
+        // Enters (1) or leaves (-1) a nested expression
+        void nest(int levels) {
+            depth += levels;
+            if (depth > MAX_NESTING) throw new IllegalArgumentException("Formula nested deeper than " + MAX_NESTING + ": " + text);
+        }
+
+        // A function name (ignoring case) followed by its arguments in parentheses
+        Node call() {
+            int start = pos;
+            pos = CellRef.letters(text, pos, text.length());
+            int function = FUNCTIONS.indexOf(text.substring(start, pos).toUpperCase());
+            if (function < 0) throw error();
+            pos++; // '('
+            List<Range> args = new ArrayList<>();
+            List<Node> values = new ArrayList<>();
+            while (true) {
+                Range range = function <= COUNT ? range() : null;
+                if (range != null) {
+                    args.add(range);
+                } else {
+                    values.add(comparison());
+                }
+                if (peek() != ',') break;
+                pos++;
+            }
+            if (peek() != ')') throw error();
+            pos++;
+            Node[] nodes = values.toArray(new Node[0]);
+            int arity = function == IF ? 3 : function == POW ? 2 : function > COUNT ? 1 : nodes.length;
+            if (nodes.length != arity) throw error();
+            if (function == IF) return new If(nodes[0], nodes[1], nodes[2]);
+            if (function > IF) return new Call(function, nodes);
+            return new Aggregate(function, args.toArray(new Range[0]), nodes);
+        }
+
+        // A range of cells (any two opposite corners), or null if the input is not at a range
+        Range range() {
+            int colon = CellRef.end(text, pos, text.length());
+            if (colon == pos || colon == text.length() || text.charAt(colon) != ':') return null;
+            int end = CellRef.end(text, colon + 1, text.length());
+            long from = CellRef.parse(text, pos, colon), to = CellRef.parse(text, colon + 1, end);
+            if (from == CellRef.INVALID || to == CellRef.INVALID) throw error();
+            pos = end;
+            return new Range(Math.min(CellRef.x(from), CellRef.x(to)), Math.min(CellRef.y(from), CellRef.y(to)),
+                    Math.max(CellRef.x(from), CellRef.x(to)), Math.max(CellRef.y(from), CellRef.y(to)));
+        }
+
+        Node number() {
+            int start = pos;
+            while (Character.isDigit(peek()) || peek() == '.') pos++;
+            try {
+                return new Num(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                throw error();
+            }
+        }
+
+        // A column name of letters followed by a row number (e.g., "B3", "AA100")
+        Node reference() {
+            int start = pos;
+            pos = CellRef.end(text, pos, text.length());
+            long packed = CellRef.parse(text, start, pos);
+            if (packed == CellRef.INVALID) throw error();
+            return new Ref(CellRef.x(packed), CellRef.y(packed), refs++); // renumbered by FormulaOptimizer if needed
+        }
+
+        char peek() {
+            return peek(0);
+        }
+
+        char peek(int ahead) {
+            return pos + ahead < text.length() ? text.charAt(pos + ahead) : '\0';
+        }
+
+        IllegalArgumentException error() {
+            return new IllegalArgumentException("Invalid form at " + pos + ": " + text);
+        }
+    }
+}
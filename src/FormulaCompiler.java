@@ -0,0 +1,337 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles the expression tree of a Formula into a JVM hidden class implementing CompiledFormula.
+ * The class file is written by hand: the evaluate method is a straight line of double arithmetic
+ * (loads from the values array, constants, dadd/dsub/dmul/dneg) with divisions, comparisons and math
+ * functions going through static methods, so no stack map frames are needed. A shared subtree is
+ * computed once into a local variable and loaded from it afterwards. Formulas with an if (which must
+ * stay lazy) or an aggregate are not compiled. Hidden classes are unloaded together with their formula.
+ *
+ * A Formula is promoted to bytecode after it was interpreted getThreshold() times. The threshold is read
+ * from the system property "ex2.compileThreshold" (default 1000), a negative threshold keeps the interpreter.
+ */
+public final class FormulaCompiler {
+    private static final String CLASS_NAME = "FormulaCode";
+    private static final int MAX_CODE_LENGTH = 65535, MAX_POOL_SIZE = 65000, MAX_SHARED = 126; // 2 + 2 * 126 locals fit dstore's index byte
+    private static volatile int threshold = Integer.getInteger("ex2.compileThreshold", 1000);
+
+    private FormulaCompiler() {;}
+
+    /**
+     * @return the number of interpreted evaluations after which a formula is compiled, negative if never
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Changes the number of interpreted evaluations after which a formula is compiled into bytecode.
+     * @param t the new threshold, 0 compiles formulas on their first evaluation, a negative value
+     *          keeps every formula on the interpreter
+     */
+    public static void setThreshold(int t) {
+        threshold = t;
+    }
+
+    /**
+     * Divides a by b, used by the generated code.
+     * @throws ArithmeticException if b is 0
+     */
+    public static double divide(double a, double b) {
+        if (b == 0) throw new ArithmeticException("Division by zero");
+        return a / b;
+    }
+
+    /**
+     * Compares a and b, used by the generated code and by the interpreter.
+     * @param op one of Formula.LT, GT, EQ, NE, LE, GE
+     * @return 1 if the comparison holds, else 0
+     */
+    public static double compare(double a, double b, int op) {
+        boolean holds = switch (op) {
+            case Formula.LT -> a < b;
+            case Formula.GT -> a > b;
+            case Formula.EQ -> a == b;
+            case Formula.NE -> a != b;
+            case Formula.LE -> a <= b;
+            default -> a >= b;
+        };
+        return holds ? 1 : 0;
+    }
+
+    /**
+     * Raises a to the power b, used by the generated code and by the interpreter.
+     * @throws ArithmeticException if the result is not a number (e.g., pow(-8, 1/3))
+     */
+    public static double pow(double a, double b) {
+        double result = Math.pow(a, b);
+        if (Double.isNaN(result)) throw new ArithmeticException("Not a number");
+        return result;
+    }
+
+    /**
+     * Compiles a formula into a hidden class.
+     * @param formula the formula to compile
+     * @return the compiled formula, or null if the formula is too large for a single method
+     *         or has an if or an aggregate (which stay on the interpreter)
+     */
+    public static CompiledFormula compile(Formula formula) {
+        if (formula.references().length > Short.MAX_VALUE || formula.sharedCount() > MAX_SHARED) return null;
+        if (!ClassWriter.isCompilable(formula.root())) return null;
+        byte[] bytes = new ClassWriter(formula.root(), formula.sharedCount()).toBytes();
+        if (bytes == null) return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledFormula) lookup.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not define a formula class", e);
+        }
+    }
+
+    // Writes the class file of a single formula
+    private static final class ClassWriter {
+        private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+        private static final int UTF8 = 1, DOUBLE = 6, CLASS = 7, METHOD_REF = 10, NAME_AND_TYPE = 12;
+        private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+        private static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, LDC2_W = 0x14, DLOAD = 0x18, DALOAD = 0x31, DSTORE = 0x39, DUP2 = 0x5c;
+        private static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DNEG = 0x77;
+        private static final int DRETURN = 0xaf, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+        private final Formula.Node root;
+        private final boolean[] stored; // the shared subtrees already stored into their local variable
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<Object, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+        private int divide, compare, pow, sin, cos; // the method entries called by the generated code
+
+        ClassWriter(Formula.Node root, int shared) {
+            this.root = root;
+            this.stored = new boolean[shared];
+        }
+
+        /**
+         * @return the class file, or null if the code of evaluate is too large
+         */
+        byte[] toBytes() {
+            try {
+                int thisClass = classEntry(CLASS_NAME);
+                int superClass = classEntry("java/lang/Object");
+                int itf = classEntry("CompiledFormula");
+                int objectInit = methodEntry(superClass, "<init>", "()V");
+                int compiler = classEntry("FormulaCompiler"), math = classEntry("java/lang/Math");
+                divide = methodEntry(compiler, "divide", "(DD)D");
+                compare = methodEntry(compiler, "compare", "(DDI)D");
+                pow = methodEntry(compiler, "pow", "(DD)D");
+                sin = methodEntry(math, "sin", "(D)D");
+                cos = methodEntry(math, "cos", "(D)D");
+                int code = utf8("Code");
+
+                ByteArrayOutputStream evaluate = new ByteArrayOutputStream();
+                emit(root, new DataOutputStream(evaluate));
+                evaluate.write(DRETURN);
+                if (evaluate.size() > MAX_CODE_LENGTH || poolCount > MAX_POOL_SIZE) return null;
+
+                ByteArrayOutputStream init = new ByteArrayOutputStream();
+                DataOutputStream initOut = new DataOutputStream(init);
+                initOut.writeByte(ALOAD_0);
+                initOut.writeByte(INVOKESPECIAL);
+                initOut.writeShort(objectInit);
+                initOut.writeByte(RETURN);
+
+                int initName = utf8("<init>"), initType = utf8("()V");
+                int evalName = utf8("evaluate"), evalType = utf8("([D)D");
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(61); // Java 17
+                out.writeShort(poolCount);
+                pool.writeTo(out);
+                out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(itf);
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+                writeMethod(out, initName, initType, code, 1, 1, init.toByteArray());
+                writeMethod(out, evalName, evalType, code, maxStack(root), 2 + 2 * stored.length, evaluate.toByteArray());
+                out.writeShort(0); // attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by in-memory streams
+            }
+        }
+
+        // Emits the code pushing the value of a node (a double) on the operand stack
+        private void emit(Formula.Node node, DataOutputStream out) throws IOException {
+            if (node instanceof Formula.Num num) {
+                if (Double.doubleToRawLongBits(num.value) == 0L) {
+                    out.writeByte(DCONST_0);
+                } else if (num.value == 1.0) {
+                    out.writeByte(DCONST_1);
+                } else {
+                    out.writeByte(LDC2_W);
+                    out.writeShort(doubleEntry(num.value));
+                }
+            } else if (node instanceof Formula.Ref ref) {
+                out.writeByte(ALOAD_1);
+                if (ref.slot <= 5) {
+                    out.writeByte(ICONST_0 + ref.slot);
+                } else if (ref.slot <= Byte.MAX_VALUE) {
+                    out.writeByte(BIPUSH);
+                    out.writeByte(ref.slot);
+                } else {
+                    out.writeByte(SIPUSH);
+                    out.writeShort(ref.slot);
+                }
+                out.writeByte(DALOAD);
+            } else if (node instanceof Formula.Shared shared) {
+                int local = 2 + 2 * shared.index; // after this and the values array
+                if (stored[shared.index]) {
+                    out.writeByte(DLOAD);
+                    out.writeByte(local);
+                } else {
+                    stored[shared.index] = true;
+                    emit(shared.node, out);
+                    out.writeByte(DUP2);
+                    out.writeByte(DSTORE);
+                    out.writeByte(local);
+                }
+            } else if (node instanceof Formula.Neg neg) {
+                emit(neg.operand, out);
+                out.writeByte(DNEG);
+            } else if (node instanceof Formula.Compare cmp) {
+                emit(cmp.left, out);
+                emit(cmp.right, out);
+                out.writeByte(ICONST_0 + cmp.op);
+                out.writeByte(INVOKESTATIC);
+                out.writeShort(compare);
+            } else if (node instanceof Formula.Call call) {
+                for (Formula.Node arg : call.args) {
+                    emit(arg, out);
+                }
+                out.writeByte(INVOKESTATIC);
+                out.writeShort(call.function == Formula.SIN ? sin : call.function == Formula.COS ? cos : pow);
+            } else {
+                Formula.BinOp[] chain = ((Formula.BinOp) node).chain(); // a loop over the chain, not recursion
+                emit(chain[0].left, out);
+                for (Formula.BinOp bin : chain) {
+                    emit(bin.right, out);
+                    switch (bin.op) {
+                        case '+' -> out.writeByte(DADD);
+                        case '-' -> out.writeByte(DSUB);
+                        case '*' -> out.writeByte(DMUL);
+                        default -> {
+                            out.writeByte(INVOKESTATIC);
+                            out.writeShort(divide);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Checks if a node can be compiled: it has no if and no aggregate
+        static boolean isCompilable(Formula.Node node) {
+            if (node instanceof Formula.Num || node instanceof Formula.Ref) return true;
+            if (node instanceof Formula.Shared shared) return isCompilable(shared.node);
+            if (node instanceof Formula.Neg neg) return isCompilable(neg.operand);
+            if (node instanceof Formula.BinOp) {
+                for (; node instanceof Formula.BinOp bin; node = bin.left) {
+                    if (!isCompilable(bin.right)) return false;
+                }
+                return isCompilable(node);
+            }
+            if (node instanceof Formula.Compare cmp) return isCompilable(cmp.left) && isCompilable(cmp.right);
+            if (node instanceof Formula.Call call) {
+                for (Formula.Node arg : call.args) {
+                    if (!isCompilable(arg)) return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        // The max operand stack size (in slots, a double takes two) needed to evaluate a node
+        private static int maxStack(Formula.Node node) {
+            if (node instanceof Formula.Shared shared) return Math.max(maxStack(shared.node), 4); // dup2 of the value
+            if (node instanceof Formula.Neg neg) return maxStack(neg.operand);
+            if (node instanceof Formula.BinOp) {
+                int stack = 0;
+                for (; node instanceof Formula.BinOp bin; node = bin.left) {
+                    stack = Math.max(stack, 2 + maxStack(bin.right)); // the right operand is pushed over the left one
+                }
+                return Math.max(stack, maxStack(node));
+            }
+            if (node instanceof Formula.Compare cmp) return Math.max(Math.max(maxStack(cmp.left), 2 + maxStack(cmp.right)), 5);
+            if (node instanceof Formula.Call call) {
+                return call.args.length == 1 ? maxStack(call.args[0]) : Math.max(maxStack(call.args[0]), 2 + maxStack(call.args[1]));
+            }
+            return 2;
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int type, int code,
+                                        int maxStack, int maxLocals, byte[] bytecode) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(code);
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        private int utf8(String s) throws IOException {
+            Integer index = entries.get(s);
+            if (index != null) return index;
+            poolOut.writeByte(UTF8);
+            poolOut.writeUTF(s);
+            entries.put(s, poolCount);
+            return poolCount++;
+        }
+
+        private int classEntry(String name) throws IOException {
+            int nameIndex = utf8(name);
+            poolOut.writeByte(CLASS);
+            poolOut.writeShort(nameIndex);
+            return poolCount++;
+        }
+
+        private int methodEntry(int owner, String name, String type) throws IOException {
+            int nameIndex = utf8(name), typeIndex = utf8(type);
+            poolOut.writeByte(NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(typeIndex);
+            int nameAndType = poolCount++;
+            poolOut.writeByte(METHOD_REF);
+            poolOut.writeShort(owner);
+            poolOut.writeShort(nameAndType);
+            return poolCount++;
+        }
+
+        private int doubleEntry(double value) throws IOException {
+            Long bits = Double.doubleToRawLongBits(value);
+            Integer index = entries.get(bits);
+            if (index != null) return index;
+            poolOut.writeByte(DOUBLE);
+            poolOut.writeLong(bits);
+            entries.put(bits, poolCount);
+            int entry = poolCount;
+            poolCount += 2; // a double takes two constant pool entries
+            return entry;
+        }
+    }
+}
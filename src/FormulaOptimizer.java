@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimizes the expression tree of a formula once, when it is compiled from the cell data:
+ * 1. Constant folding: a node whose operands are all numbers is replaced by its value (e.g., "2*3+A1"
+ *    becomes "6.0+A1"), an if with a constant condition by the branch it takes. A node raising an error
+ *    (e.g., "1/0") is kept, so the error is raised by every evaluation.
+ * 2. Common subexpression elimination: subtrees occurring more than once (compared by value numbering,
+ *    e.g., "(6.0+A1)" in "=(2*3+A1)*(2*3+A1)/4") are replaced by a single Shared node, evaluated at most
+ *    once per evaluation of the formula (lazily, so a subtree only used by an untaken branch is not evaluated).
+ * The references and ranges of the optimized tree are collected again, so the references folded away
+ * are not precedents of the cell anymore. Chains of binary operators (e.g., "=A0+A1+...+A4999", parsed
+ * into a left-deep tree) are walked with loops, not recursion, so long formulas do not overflow the stack.
+ */
+final class FormulaOptimizer {
+    private Map<Formula.Node, Integer> numbers; // the value number of every node, null if no node is shared
+    private Map<String, Integer> values; // the value number of every distinct subtree
+    private int[] uses; // the number of occurrences of every value number
+    private Formula.Shared[] shared; // the Shared node of every value number used twice
+    private final List<Formula.Shared> sharedNodes = new ArrayList<>();
+    private final List<Formula.Ref> references = new ArrayList<>();
+    private final List<Formula.Range> ranges = new ArrayList<>();
+    private boolean conditional;
+    private int[] hashes = new int[8]; // the structural hashes of the operations of the tree, see mayRepeat()
+    private int hashCount;
+    private Formula.BinOp[] spines = new Formula.BinOp[8]; // a stack of the chains of binary operators being walked
+    private int spineTop;
+
+    /**
+     * Optimizes a parsed expression tree.
+     * @return the optimized tree
+     */
+    Formula.Node optimize(Formula.Node root) {
+        Formula.Node folded = fold(root);
+        if (mayRepeat(folded)) { // else there is nothing to share, and no need to number the nodes
+            numbers = new IdentityHashMap<>();
+            values = new HashMap<>();
+            uses = new int[16];
+            shared = new Formula.Shared[16];
+            number(folded);
+            count(folded);
+        }
+        return build(folded);
+    }
+
+    /**
+     * @return the references of the optimized tree, in order of appearance (numbered accordingly)
+     */
+    Formula.Ref[] references() {
+        return references.toArray(new Formula.Ref[0]);
+    }
+
+    /**
+     * @return the ranges read by the optimized tree, in order of appearance
+     */
+    Formula.Range[] ranges() {
+        return ranges.toArray(new Formula.Range[0]);
+    }
+
+    /**
+     * @return the shared subtrees of the optimized tree, indexed by Shared.index
+     */
+    Formula.Shared[] shared() {
+        return sharedNodes.toArray(new Formula.Shared[0]);
+    }
+
+    /**
+     * @return true if the optimized tree has an if
+     */
+    boolean isConditional() {
+        return conditional;
+    }
+
+    // Folds the constant subtrees of a node, bottom up. Unchanged nodes are kept as they are, so a formula
+    // which can not be optimized keeps the nodes allocated (next to each other) by the parser
+    private Formula.Node fold(Formula.Node node) {
+        if (node instanceof Formula.Neg neg) {
+            Formula.Node operand = fold(neg.operand);
+            if (operand != neg.operand) node = new Formula.Neg(operand);
+        } else if (node instanceof Formula.BinOp bin) {
+            int base = spineTop, top = pushSpine(bin, false);
+            Formula.Node left = fold(spines[top - 1].left);
+            for (int i = top - 1; i >= base; i--) {
+                Formula.BinOp op = spines[i];
+                Formula.Node right = fold(op.right);
+                Formula.Node folded = left == op.left && right == op.right ? op : new Formula.BinOp(op.op, left, right);
+                left = isConstant(folded) ? evaluated(folded) : folded;
+            }
+            spineTop = base;
+            return left;
+        } else if (node instanceof Formula.Compare cmp) {
+            Formula.Node left = fold(cmp.left), right = fold(cmp.right);
+            if (left != cmp.left || right != cmp.right) node = new Formula.Compare(cmp.op, left, right);
+        } else if (node instanceof Formula.Call call) {
+            Formula.Node[] args = foldAll(call.args);
+            if (args != call.args) node = new Formula.Call(call.function, args);
+        } else if (node instanceof Formula.Aggregate aggregate) {
+            Formula.Node[] values = foldAll(aggregate.values);
+            if (values != aggregate.values) node = new Formula.Aggregate(aggregate.function, aggregate.ranges, values);
+        } else if (node instanceof Formula.If branch) {
+            Formula.Node condition = fold(branch.condition);
+            if (condition instanceof Formula.Num num) return fold(num.value != 0 ? branch.then : branch.otherwise);
+            Formula.Node then = fold(branch.then), otherwise = fold(branch.otherwise);
+            if (condition == branch.condition && then == branch.then && otherwise == branch.otherwise) return node;
+            return new Formula.If(condition, then, otherwise);
+        }
+        return isConstant(node) ? evaluated(node) : node;
+    }
+
+    // Folds an array of nodes, returns the array itself if no node changed
+    private Formula.Node[] foldAll(Formula.Node[] nodes) {
+        Formula.Node[] folded = nodes;
+        for (int i = 0; i < nodes.length; i++) {
+            Formula.Node node = fold(nodes[i]);
+            if (node == nodes[i]) continue;
+            if (folded == nodes) folded = nodes.clone();
+            folded[i] = node;
+        }
+        return folded;
+    }
+
+    // Checks if an operation (not a leaf) only has numbers as operands
+    private static boolean isConstant(Formula.Node node) {
+        if (node instanceof Formula.Neg neg) return neg.operand instanceof Formula.Num;
+        if (node instanceof Formula.BinOp bin) return bin.left instanceof Formula.Num && bin.right instanceof Formula.Num;
+        if (node instanceof Formula.Compare cmp) return cmp.left instanceof Formula.Num && cmp.right instanceof Formula.Num;
+        if (node instanceof Formula.Call call) return allNumbers(call.args);
+        return node instanceof Formula.Aggregate aggregate && aggregate.ranges.length == 0 && allNumbers(aggregate.values);
+    }
+
+    private static boolean allNumbers(Formula.Node[] nodes) {
+        for (Formula.Node node : nodes) {
+            if (!(node instanceof Formula.Num)) return false;
+        }
+        return true;
+    }
+
+    // The value of a constant node, or the node itself if its evaluation fails
+    private static Formula.Node evaluated(Formula.Node node) {
+        try {
+            return new Formula.Num(node.eval(null)); // a constant node does not read the sheet
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return node;
+        }
+    }
+
+    // Checks if two operations of a tree may be equal subtrees, comparing their structural hashes. Numbering
+    // allocates a key per node, this cheap check skips it for most formulas (which have no common subexpression)
+    private boolean mayRepeat(Formula.Node root) {
+        hash(root);
+        Arrays.sort(hashes, 0, hashCount);
+        for (int i = 1; i < hashCount; i++) {
+            if (hashes[i] == hashes[i - 1]) return true;
+        }
+        return false;
+    }
+
+    // The structural hash of a node, the hashes of the operations are added to hashes
+    private int hash(Formula.Node node) {
+        int hash;
+        if (node instanceof Formula.Num num) return Double.hashCode(num.value);
+        if (node instanceof Formula.Ref ref) return 31 * ref.x + ref.y + 17;
+        if (node instanceof Formula.Neg neg) {
+            hash = 41 * hash(neg.operand) + 1;
+        } else if (node instanceof Formula.BinOp bin) {
+            int base = spineTop, top = pushSpine(bin, false);
+            hash = hash(spines[top - 1].left);
+            for (int i = top - 1; i >= base; i--) {
+                hash = addHash(31 * (31 * hash + hash(spines[i].right)) + spines[i].op);
+            }
+            spineTop = base;
+            return hash;
+        } else if (node instanceof Formula.Compare cmp) {
+            hash = 31 * (31 * hash(cmp.left) + hash(cmp.right)) + cmp.op + 2;
+        } else if (node instanceof Formula.Call call) {
+            hash = hashAll(call.args) + call.function + 3;
+        } else if (node instanceof Formula.If branch) {
+            hash = 31 * (31 * hash(branch.condition) + hash(branch.then)) + hash(branch.otherwise) + 4;
+        } else {
+            Formula.Aggregate aggregate = (Formula.Aggregate) node;
+            hash = hashAll(aggregate.values) + aggregate.function + 5;
+            for (Formula.Range range : aggregate.ranges) {
+                hash = 31 * hash + ((range.x1 * 31 + range.y1) * 31 + range.x2) * 31 + range.y2;
+            }
+        }
+        return addHash(hash);
+    }
+
+    private int hashAll(Formula.Node[] nodes) {
+        int hash = 0;
+        for (Formula.Node node : nodes) {
+            hash = 31 * hash + hash(node);
+        }
+        return 31 * hash;
+    }
+
+    private int addHash(int hash) {
+        if (hashCount == hashes.length) hashes = Arrays.copyOf(hashes, 2 * hashCount);
+        hashes[hashCount++] = hash;
+        return hash;
+    }
+
+    // Assigns a value number to every node, equal subtrees get the same number
+    private int number(Formula.Node node) {
+        String key;
+        if (node instanceof Formula.Num num) {
+            key = "N" + Double.doubleToRawLongBits(num.value);
+        } else if (node instanceof Formula.Ref ref) {
+            key = "R" + ref.x + "," + ref.y;
+        } else if (node instanceof Formula.Neg neg) {
+            key = "-" + number(neg.operand);
+        } else if (node instanceof Formula.BinOp bin) {
+            int base = spineTop, top = pushSpine(bin, false);
+            int left = number(spines[top - 1].left);
+            for (int i = top - 1; i >= base; i--) {
+                left = number(spines[i], spines[i].op + "" + left + "," + number(spines[i].right));
+            }
+            spineTop = base;
+            return left;
+        } else if (node instanceof Formula.Compare cmp) {
+            key = "C" + cmp.op + ":" + number(cmp.left) + "," + number(cmp.right);
+        } else if (node instanceof Formula.Call call) {
+            key = "F" + call.function + ":" + numberAll(call.args);
+        } else if (node instanceof Formula.If branch) {
+            key = "I" + number(branch.condition) + "," + number(branch.then) + "," + number(branch.otherwise);
+        } else {
+            Formula.Aggregate aggregate = (Formula.Aggregate) node;
+            key = "A" + aggregate.function + ":" + Arrays.toString(aggregate.ranges) + numberAll(aggregate.values);
+        }
+        return number(node, key);
+    }
+
+    // Assigns the value number of a key to a node
+    private int number(Formula.Node node, String key) {
+        Integer value = values.get(key);
+        if (value == null) {
+            value = values.size();
+            values.put(key, value);
+        }
+        numbers.put(node, value);
+        return value;
+    }
+
+    private String numberAll(Formula.Node[] nodes) {
+        StringBuilder key = new StringBuilder();
+        for (Formula.Node node : nodes) {
+            key.append(number(node)).append(',');
+        }
+        return key.toString();
+    }
+
+    // Counts the occurrences of every value number, top down: the subtrees of a repeated subtree are only counted once
+    private void count(Formula.Node node) {
+        while (true) {
+            int value = numbers.get(node);
+            if (value >= uses.length) uses = Arrays.copyOf(uses, Math.max(2 * uses.length, value + 1));
+            if (uses[value]++ > 0) return;
+            if (!(node instanceof Formula.BinOp bin)) break;
+            count(bin.right);
+            node = bin.left;
+        }
+        for (Formula.Node child : children(node)) {
+            count(child);
+        }
+    }
+
+    // Rebuilds the tree, sharing the operations occurring more than once and numbering the references.
+    // Like fold(), unchanged nodes are kept as they are
+    private Formula.Node build(Formula.Node node) {
+        if (node instanceof Formula.Num) return node;
+        if (node instanceof Formula.Ref ref) {
+            Formula.Ref numbered = ref.slot == references.size() ? ref : new Formula.Ref(ref.x, ref.y, references.size());
+            references.add(numbered);
+            return numbered;
+        }
+        if (numbers == null || uses[numbers.get(node)] < 2) return rebuild(node);
+        int value = numbers.get(node);
+        if (value >= shared.length) shared = Arrays.copyOf(shared, Math.max(2 * shared.length, value + 1));
+        if (shared[value] == null) {
+            Formula.Node built = rebuild(node); // shares its own subtrees first
+            shared[value] = new Formula.Shared(sharedNodes.size(), built);
+            sharedNodes.add(shared[value]);
+        }
+        return shared[value];
+    }
+
+    private Formula.Node rebuild(Formula.Node node) {
+        if (node instanceof Formula.Neg neg) {
+            Formula.Node operand = build(neg.operand);
+            return operand == neg.operand ? neg : new Formula.Neg(operand);
+        }
+        if (node instanceof Formula.BinOp bin) {
+            int base = spineTop, top = pushSpine(bin, true); // the shared operators down the chain are built by build()
+            Formula.Node left = build(spines[top - 1].left);
+            for (int i = top - 1; i >= base; i--) {
+                Formula.BinOp op = spines[i];
+                Formula.Node right = build(op.right);
+                left = left == op.left && right == op.right ? op : new Formula.BinOp(op.op, left, right);
+            }
+            spineTop = base;
+            return left;
+        }
+        if (node instanceof Formula.Compare cmp) {
+            Formula.Node left = build(cmp.left), right = build(cmp.right);
+            return left == cmp.left && right == cmp.right ? cmp : new Formula.Compare(cmp.op, left, right);
+        }
+        if (node instanceof Formula.Call call) {
+            Formula.Node[] args = buildAll(call.args);
+            return args == call.args ? call : new Formula.Call(call.function, args);
+        }
+        if (node instanceof Formula.If branch) {
+            conditional = true;
+            Formula.Node condition = build(branch.condition), then = build(branch.then), otherwise = build(branch.otherwise);
+            if (condition == branch.condition && then == branch.then && otherwise == branch.otherwise) return branch;
+            return new Formula.If(condition, then, otherwise);
+        }
+        Formula.Aggregate aggregate = (Formula.Aggregate) node;
+        ranges.addAll(Arrays.asList(aggregate.ranges));
+        Formula.Node[] values = buildAll(aggregate.values);
+        return values == aggregate.values ? aggregate : new Formula.Aggregate(aggregate.function, aggregate.ranges, values);
+    }
+
+    // Builds an array of nodes, returns the array itself if no node changed
+    private Formula.Node[] buildAll(Formula.Node[] nodes) {
+        Formula.Node[] built = nodes;
+        for (int i = 0; i < nodes.length; i++) {
+            Formula.Node node = build(nodes[i]);
+            if (node == nodes[i]) continue;
+            if (built == nodes) built = nodes.clone();
+            built[i] = node;
+        }
+        return built;
+    }
+
+    // Pushes the chain of binary operators down the left operands of bin (starting with bin) on the spines
+    // stack, stopping before a shared operator if unshared is true. The caller pops it by restoring spineTop
+    // @return the new top of the stack
+    private int pushSpine(Formula.BinOp bin, boolean unshared) {
+        Formula.Node node = bin;
+        do {
+            if (spineTop == spines.length) spines = Arrays.copyOf(spines, 2 * spineTop);
+            spines[spineTop++] = (Formula.BinOp) node;
+            node = ((Formula.BinOp) node).left;
+        } while (node instanceof Formula.BinOp next && !(unshared && numbers != null && uses[numbers.get(next)] >= 2));
+        return spineTop;
+    }
+
+    private static Formula.Node[] children(Formula.Node node) {
+        if (node instanceof Formula.Neg neg) return new Formula.Node[]{neg.operand};
+        if (node instanceof Formula.Compare cmp) return new Formula.Node[]{cmp.left, cmp.right};
+        if (node instanceof Formula.Call call) return call.args;
+        if (node instanceof Formula.If branch) return new Formula.Node[]{branch.condition, branch.then, branch.otherwise};
+        if (node instanceof Formula.Aggregate aggregate) return aggregate.values;
+        return new Formula.Node[0];
+    }
+}
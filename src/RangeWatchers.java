@@ -0,0 +1,105 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cells whose formulas read ranges, listed by the columns their ranges span. Finds the cells reading
+ * a given cell through a range in O(ranges spanning its column), so a formula depends on a range by a single
+ * edge (see DependencyGraph.Ranges) rather than by an edge per cell within it, and the cost of a range does
+ * not depend on its area.
+ */
+final class RangeWatchers {
+    static final Formula.Range[] NO_RANGES = new Formula.Range[0];
+
+    private int[][] cells = new int[0][]; // the cells watching every column
+    private int[][] rows = new int[0][]; // the first and last rows watched by each of them (two per cell)
+    private int[] counts = new int[0]; // the number of cells watching every column
+    private final Map<Integer, Formula.Range[]> ranges = new HashMap<>(); // the ranges watched by every cell
+
+    /**
+     * Replaces the ranges watched by a cell.
+     * @param cell    the cell index
+     * @param watched the ranges read by its formula (none to stop watching)
+     */
+    void set(int cell, Formula.Range[] watched) {
+        Formula.Range[] old = watched.length == 0 ? ranges.remove(cell) : ranges.put(cell, watched);
+        if (old != null) {
+            for (Formula.Range range : old) {
+                for (int x = range.x1; x <= range.x2; x++) {
+                    remove(x, cell);
+                }
+            }
+        }
+        for (Formula.Range range : watched) {
+            for (int x = range.x1; x <= range.x2; x++) {
+                add(x, cell, range.y1, range.y2);
+            }
+        }
+    }
+
+    /**
+     * @return the ranges watched by a cell, none if it does not read ranges (must not be modified)
+     */
+    Formula.Range[] ranges(int cell) {
+        return ranges.getOrDefault(cell, NO_RANGES);
+    }
+
+    /**
+     * Finds the cells reading the cell x,y through their ranges.
+     * @return the cells, once per range containing x,y (a new array, NONE if no range contains it)
+     */
+    int[] watchers(int x, int y) {
+        if (x >= counts.length || counts[x] == 0) return DependencyGraph.NONE;
+        int[] columnRows = rows[x];
+        int found = 0;
+        for (int i = 0; i < counts[x]; i++) {
+            if (columnRows[2 * i] <= y && y <= columnRows[2 * i + 1]) found++;
+        }
+        if (found == 0) return DependencyGraph.NONE;
+        int[] watchers = new int[found];
+        found = 0;
+        for (int i = 0; i < counts[x]; i++) {
+            if (columnRows[2 * i] <= y && y <= columnRows[2 * i + 1]) watchers[found++] = cells[x][i];
+        }
+        return watchers;
+    }
+
+    /**
+     * @return true if no cell watches a range
+     */
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    private void add(int x, int cell, int y1, int y2) {
+        if (x >= counts.length) {
+            int capacity = Math.max(x + 1, 2 * counts.length);
+            cells = Arrays.copyOf(cells, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        if (cells[x] == null || counts[x] == cells[x].length) {
+            int capacity = Math.max(4, 2 * counts[x]);
+            cells[x] = cells[x] == null ? new int[capacity] : Arrays.copyOf(cells[x], capacity);
+            rows[x] = rows[x] == null ? new int[2 * capacity] : Arrays.copyOf(rows[x], 2 * capacity);
+        }
+        int i = counts[x]++;
+        cells[x][i] = cell;
+        rows[x][2 * i] = y1;
+        rows[x][2 * i + 1] = y2;
+    }
+
+    // Removes all the ranges of a cell spanning the column x
+    private void remove(int x, int cell) {
+        for (int i = 0; i < counts[x]; ) {
+            if (cells[x][i] != cell) {
+                i++;
+                continue;
+            }
+            int last = --counts[x];
+            cells[x][i] = cells[x][last];
+            rows[x][2 * i] = rows[x][2 * last];
+            rows[x][2 * i + 1] = rows[x][2 * last + 1];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Recalculates a sheet on a dedicated thread, so edits never block the thread rendering it (see Ex2GUI).
+ * The worker owns the sheet: edits and other tasks (e.g., a load) are queued and run by its thread in order,
+ * and the values are published as immutable snapshots of a window of cells (see SheetSnapshot).
+ * The tasks queued during a recalculation are run as a single batch followed by a single recalculation,
+ * so a burst of edits is coalesced. After a batch, a snapshot marking the out of date cells of the window
+ * as pending (showing their previous values) is published first, then a snapshot with their new values.
+ */
+final class RecalcWorker implements AutoCloseable {
+    private static final Runnable WAKE_UP = () -> {}; // queued to publish the window after it moved
+
+    private final Sheet sheet;
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private long submitted; // the sequence number of the last edit submitted
+    private long applied; // the sequence number of the last edit applied, worker thread only
+    private volatile int[] window = {0, 0, 0, 0}; // x, y, width, height of the published window
+    private volatile SheetSnapshot snapshot = SheetSnapshot.EMPTY;
+    private volatile long recalculations;
+
+    /**
+     * Starts a worker, from now on the sheet must only be accessed through it.
+     */
+    RecalcWorker(Sheet sheet) {
+        this.sheet = sheet;
+        thread = new Thread(this::run, "ex2-recalc");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an edit of a cell (see Sheet.set()).
+     * @return the sequence number of the edit, the edit is applied once snapshot().applied() reaches it
+     */
+    synchronized long submit(int x, int y, String data) {
+        long sequence = ++submitted;
+        tasks.add(() -> {
+            sheet.set(x, y, data);
+            if (!(sheet instanceof Ex2Sheet) && sheet.isIn(x, y) && sheet.depth()[x][y] == Ex2Utils.ERR) {
+                sheet.get(x, y).setType(Ex2Utils.ERR_CYCLE_FORM); // an Ex2Sheet marks the cycles by itself
+            }
+            applied = sequence;
+        });
+        return sequence;
+    }
+
+    /**
+     * Queues a task on the sheet (e.g., a load or a save), the sheet is recalculated after it.
+     */
+    void execute(Consumer<Sheet> task) {
+        tasks.add(() -> task.accept(sheet));
+    }
+
+    /**
+     * Sets the window of cells of the snapshots, a snapshot of the new window is published
+     * once the queued tasks are done.
+     */
+    void setWindow(int x, int y, int width, int height) {
+        window = new int[]{x, y, width, height};
+        tasks.add(WAKE_UP);
+    }
+
+    /**
+     * @return the last snapshot published, never null
+     */
+    SheetSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the number of recalculations done (a recalculation per batch of tasks)
+     */
+    long recalculations() {
+        return recalculations;
+    }
+
+    /**
+     * Stops the worker, the queued tasks are dropped.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    private void run() {
+        List<Runnable> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(tasks.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            tasks.drainTo(batch);
+            boolean changed = false;
+            for (Runnable task : batch) {
+                if (task == WAKE_UP) continue;
+                changed = true;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // a failed task must not stop the recalculations
+                }
+            }
+            batch.clear();
+            if (changed) {
+                if (sheet instanceof Ex2Sheet) publish(); // the pending cells, another Sheet would compute them
+                sheet.eval();
+                recalculations++;
+            }
+            publish();
+        }
+    }
+
+    private void publish() {
+        int[] w = window;
+        snapshot = SheetSnapshot.of(sheet, w[0], w[1], w[2], w[3], applied);
+    }
+}
@@ -1,10 +1,10 @@
-import java.util.LinkedList;
-import java.util.Set;
-
 public class SCell implements Cell {
     private String data;
     private int type;
+    private int dataType; // the type derived from the data, before any evaluation
     private int order;
+    private Formula formula; // the compiled formula, null unless the data is a valid formula
+    private double number; // the value of a NUMBER cell
 
     public static final int TEXT = 1;
     public static final int NUMBER = 2;
@@ -15,7 +15,7 @@ public class SCell implements Cell {
     // Constructor: Initializes the cell with data
     public SCell(String data) {
         this.data = data;
-        this.type = determineType(data);
+        this.type = this.dataType = determineType(data);
         this.order = 0;
     }
 
@@ -29,7 +29,24 @@ public class SCell implements Cell {
     @Override
     public void setData(String data) {
         this.data = data;
-        this.type = determineType(data);
+        this.type = this.dataType = determineType(data);
+    }
+
+    // Updates the cell data with a number already parsed from it (e.g., by a loader), skipping the type detection
+    public void setNumber(String data, double number) {
+        this.data = data;
+        this.number = number;
+        this.formula = null;
+        this.type = this.dataType = NUMBER;
+    }
+
+    // Updates the cell with the data of another cell, reusing its type detection (e.g., done concurrently by a loader)
+    public void copy(SCell other) {
+        this.data = other.data;
+        this.number = other.number;
+        this.formula = other.formula;
+        this.type = other.type;
+        this.dataType = other.dataType;
     }
 
     // Retrieves the type of the cell (TEXT, NUMBER, FORM, or error)
@@ -44,6 +61,11 @@ public class SCell implements Cell {
         this.type = type;
     }
 
+    // Restores the type derived from the data, dropping an error found by a previous evaluation
+    public void resetType() {
+        type = dataType;
+    }
+
     // Retrieves the order of computation for the cell
     @Override
     public int getOrder() {
@@ -56,194 +78,115 @@ public class SCell implements Cell {
         this.order = order;
     }
 
-    // Determines the type of the cell based on its data
-    private int determineType(String data) {
-        if (data == null || data.isBlank()) return TEXT;
-        if (isNumber(data)) return NUMBER;
-        return data.startsWith("=") ? (isForm(data) ? FORM : ERR_WRONG_FORM) : TEXT;
+    // Retrieves the compiled formula of the cell (null unless it is a valid formula)
+    public Formula getFormula() {
+        return formula;
     }
 
-    // Checks if the provided value is a valid number
-    private boolean isNumber(String value) {
+    // Determines the type of the cell based on its data, compiling it in case of a formula
+    private int determineType(String data) {
+        formula = null;
+        if (data == null) return TEXT;
+        if (parseNumber(data)) return NUMBER; // blank data is not a number
+        if (!data.startsWith("=")) return TEXT;
         try {
-            Double.parseDouble(value);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+            formula = Formula.compile(data);
+            return FORM;
+        } catch (IllegalArgumentException e) {
+            return ERR_WRONG_FORM;
         }
     }
 
-    // Validates if the given string is a correct formula
-    private boolean isForm(String formula) {
-        if (formula == null || !formula.startsWith("=")) return false;
-        String expression = formula.substring(1).trim();
-        return !expression.isEmpty() && !"+-*/".contains(String.valueOf(expression.charAt(expression.length() - 1)));
-    }
-
-    // Evaluates the value of the cell based on its type
-    public String evaluate(Ex2Sheet sheet, int currentX, int currentY, Set<String> visited) {
-        if (type == ERR_CYCLE_FORM) return "ERR_CYCLE!!!";
-        return switch (type) {
-            case NUMBER, TEXT -> data;
-            case FORM -> evaluateFormula(sheet, currentX, currentY, visited);
-            default -> "ERR_FORM!!!";
-        };
-    }
-
-    // Evaluates a formula and handles cell references.
-    private String evaluateFormula(Ex2Sheet sheet, int currentX, int currentY, Set<String> visited) {
-        String currentCell = getCellName(currentX, currentY);
-
-        // Detects cycles in cell references
-        if (visited.contains(currentCell)) {
-            this.type = ERR_CYCLE_FORM;
-            return "ERR_CYCLE!!!";
+    // Powers of ten exactly representable as doubles, for the fast path of parseNumber()
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // Checks if the provided value is a valid number (as accepted by Double.parseDouble), keeping its value.
+    // A single pass without exceptions: the value of a decimal of at most 15 significant digits and a small
+    // exponent is computed exactly (both operands are exact doubles, so the product or quotient is correctly
+    // rounded), any other valid number is converted by Double.parseDouble, which can not throw then.
+    private boolean parseNumber(String value) {
+        int start = 0, end = value.length();
+        while (start < end && value.charAt(start) <= ' ') start++; // whitespace trimmed as by String.trim()
+        while (end > start && value.charAt(end - 1) <= ' ') end--;
+        if (start == end) return false;
+        int pos = start;
+        boolean negative = false;
+        char c = value.charAt(pos);
+        if (c == '+' || c == '-') {
+            negative = c == '-';
+            if (++pos == end) return false;
+            c = value.charAt(pos);
         }
-
-        visited.add(currentCell);
-
-        try {
-            double result = computeForm(data, sheet, currentX, currentY, visited);
-            visited.remove(currentCell);
-            return String.valueOf(result);
-        } catch (Exception e) {
-            visited.remove(currentCell);
-            this.type = e.getMessage() != null && e.getMessage().contains("cycle") ? ERR_CYCLE_FORM : ERR_WRONG_FORM;
-            return e.getMessage() != null && e.getMessage().contains("cycle") ? "ERR_CYCLE!!!" : "ERR_FORM!!!";
+        if (c == 'N' || c == 'I') {
+            String word = c == 'N' ? "NaN" : "Infinity";
+            if (end - pos != word.length() || !value.startsWith(word, pos)) return false;
+            number = c == 'N' ? Double.NaN : negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            return true;
         }
-    }
-
-    // Converts cell coordinates to a name (e.g., A1, B2)
-    private String getCellName(int x, int y) {
-        return (char) ('A' + x) + String.valueOf(y);
-    }
-
-    // Computes the formula for a cell by replacing references with values
-    private static double computeForm(String formula, Ex2Sheet sheet, int currentX, int currentY, Set<String> visited) {
-        if (formula == null || !formula.startsWith("=")) throw new IllegalArgumentException("Invalid form");
-
-        String expression = formula.substring(1).replaceAll("\\s", "");
-        expression = replaceRefWithValues(expression, sheet, currentX, currentY, visited);
-
-        return evaluateExpression(expression);
-    }
-
-    // Replaces cell references in a formula with their evaluated values
-    private static String replaceRefWithValues(String formula, Ex2Sheet sheet, int currentX, int currentY, Set<String> visited) {
-        StringBuilder result = new StringBuilder();
-        int i = 0;
-
-        while (i < formula.length()) {
-            char c = formula.charAt(i);
-
-            if (Character.isLetter(c)) {
-                String cellName = extractCell(formula, i);
-                int[] coords = sheet.parseEntry(cellName);
-
-                if (coords == null) throw new IllegalArgumentException("Invalid reference: " + cellName);
-
-                if (coords[0] == currentX && coords[1] == currentY) throw new IllegalArgumentException("cycle detected");
-
-                SCell referencedCell = sheet.get(coords[0], coords[1]);
-                String cellValue = (referencedCell != null) ? referencedCell.evaluate(sheet, coords[0], coords[1], visited) : "0";
-
-                if (cellValue.equals("ERR_CYCLE!!!")) throw new IllegalArgumentException("cycle detected");
-
-                result.append(cellValue);
-                i += cellName.length();
+        if (c == '0' && pos + 1 < end && (value.charAt(pos + 1) | 0x20) == 'x') return parseHex(value);
+        long mantissa = 0;
+        int digits = 0, significant = 0, scale = 0; // scale: the decimal exponent of the mantissa
+        boolean dot = false;
+        for (; pos < end; pos++) {
+            c = value.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa == 0 && c == '0') {
+                    if (dot) scale--;
+                    continue;
+                }
+                if (++significant <= 18) {
+                    mantissa = 10 * mantissa + (c - '0');
+                    if (dot) scale--;
+                } else if (!dot) {
+                    scale++;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
             } else {
-                result.append(c);
-                i++;
+                break;
             }
         }
-
-        return result.toString();
-    }
-
-    // Extracts the cell name (e.g., A1, B2) from a formula
-    private static String extractCell(String formula, int startIndex) {
-        StringBuilder cellName = new StringBuilder().append(formula.charAt(startIndex));
-        int i = startIndex + 1;
-
-        while (i < formula.length() && Character.isDigit(formula.charAt(i))) {
-            cellName.append(formula.charAt(i));
-            i++;
+        if (digits == 0) return false;
+        if (pos < end && (c == 'e' || c == 'E')) {
+            if (++pos == end) return false;
+            c = value.charAt(pos);
+            boolean negativeExponent = c == '-';
+            if ((c == '+' || c == '-') && ++pos == end) return false;
+            int exponent = 0, exponentDigits = 0;
+            for (; pos < end && (c = value.charAt(pos)) >= '0' && c <= '9'; pos++) {
+                exponentDigits++;
+                if (exponent < 100_000) exponent = 10 * exponent + (c - '0');
+            }
+            if (exponentDigits == 0) return false;
+            scale += negativeExponent ? -exponent : exponent;
         }
-
-        return cellName.toString().toUpperCase();
-    }
-
-    // Evaluates a mathematical expression without replacing references
-    private static double evaluateExpression(String expression) {
-        expression = expression.replaceAll("\\s", "");
-        return evaluateParentheses(expression);
-    }
-
-    // Evaluates expressions with parentheses
-    private static double evaluateParentheses(String expression) {
-        while (expression.contains("(")) {
-            int openIndex = expression.lastIndexOf('(');
-            int closeIndex = expression.indexOf(')', openIndex);
-
-            if (closeIndex == -1) throw new IllegalArgumentException("Mismatched parentheses");
-
-            double innerResult = evaluateWithoutParentheses(expression.substring(openIndex + 1, closeIndex));
-            expression = expression.substring(0, openIndex) + innerResult + expression.substring(closeIndex + 1);
+        if (pos < end && "fFdD".indexOf(value.charAt(pos)) >= 0) pos++;
+        if (pos != end) return false;
+        if (significant <= 15 && scale >= -22 && scale <= 22) {
+            double result = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            number = negative ? -result : result;
+        } else {
+            number = Double.parseDouble(value);
         }
-
-        return evaluateWithoutParentheses(expression);
+        return true;
     }
 
-    // Evaluates expressions without parentheses
-    private static double evaluateWithoutParentheses(String expression) {
-        LinkedList<Double> numbers = new LinkedList<>();
-        LinkedList<Character> operators = new LinkedList<>();
-        StringBuilder currentNumber = new StringBuilder();
-
-        if (expression == null || expression.isBlank()) throw new IllegalArgumentException("Empty expression");
-
-        for (int i = 0; i <= expression.length(); i++) {
-            char c = (i < expression.length()) ? expression.charAt(i) : '\0';
-
-            if (Character.isDigit(c) || c == '.' || (c == '-' && (i == 0 || "+-*/".contains("" + expression.charAt(i - 1))))) {
-                currentNumber.append(c);
-            } else if ("+-*/".indexOf(c) != -1 || c == '\0') {
-                if (!currentNumber.isEmpty()) {
-                    numbers.add(Double.parseDouble(currentNumber.toString()));
-                    currentNumber.setLength(0);
-                }
-
-                while (!operators.isEmpty() && preced(operators.getLast()) >= preced(c)) {
-                    double b = numbers.removeLast();
-                    double a = numbers.removeLast();
-                    char op = operators.removeLast();
-                    numbers.add(applyOp(a, op, b));
-                }
-
-                if (c != '\0') operators.add(c);
-            } else {
-                throw new IllegalArgumentException("Invalid character: " + c);
-            }
+    // Parses a hexadecimal floating point number (e.g., "0x1.8p1"), rare enough to be left to Double.parseDouble
+    private boolean parseHex(String value) {
+        try {
+            number = Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
         }
-
-        return numbers.getFirst();
-    }
-
-    // Determines operator precedence
-    private static int preced(char operator) {
-        return operator == '+' || operator == '-' ? 1 : operator == '*' || operator == '/' ? 2 : -1;
     }
 
-    // Applies a mathematical operator to two numbers
-    private static double applyOp(double a, char operator, double b) {
-        if (operator == '/' && b == 0) throw new ArithmeticException("Division by zero");
-        return switch (operator) {
-            case '+' -> a + b;
-            case '-' -> a - b;
-            case '*' -> a * b;
-            case '/' -> a / b;
-            default -> throw new IllegalArgumentException("Unknown operator: " + operator);
-        };
+    // Evaluates the numeric value of a NUMBER or FORM cell, the referenced cells must already be computed.
+    // Throws IllegalArgumentException or ArithmeticException if the formula can not be computed.
+    public double evaluate(Ex2Sheet sheet) {
+        return type == FORM ? formula.evaluate(sheet) : number;
     }
 
     // Converts the cell's data to a string
@@ -0,0 +1,143 @@
+import java.io.File;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events emitted by Ex2Sheet, recorded with the standard JDK tooling, e.g.
+ * java -XX:StartFlightRecording:filename=ex2.jfr ... then jfr print --events ex2.SheetRecalc ex2.jfr
+ * Events are only allocated and committed while a recording enables them (see the start() methods),
+ * otherwise their cost is a check of their EventType per recalculation (or per save and load).
+ */
+final class SheetEvents {
+    static final EventType CELL_EVALUATE = EventType.getEventType(CellEvaluate.class);
+    private static final EventType RECALC = EventType.getEventType(Recalc.class);
+    private static final EventType SAVE = EventType.getEventType(Save.class);
+    private static final EventType LOAD = EventType.getEventType(Load.class);
+
+    private SheetEvents() {;}
+
+    @Name("ex2.SheetRecalc")
+    @Label("Sheet Recalculation")
+    @Category("Ex2")
+    @Description("A recalculation of the dirty cells of a sheet")
+    static final class Recalc extends Event {
+        @Label("Cells Evaluated")
+        int cells;
+
+        @Label("Cycles Found")
+        @Description("The number of cells found on a cycle (or reading one)")
+        int cycles;
+
+        /**
+         * @return a begun event, or null if no recording enables it
+         */
+        static Recalc start() {
+            if (!RECALC.isEnabled()) return null;
+            Recalc event = new Recalc();
+            event.begin();
+            return event;
+        }
+    }
+
+    /**
+     * Only committed for evaluations longer than the threshold of the recording (1 ms by default), which is
+     * configured like any JFR threshold, e.g. -XX:StartFlightRecording:ex2.CellEvaluate#threshold=100us
+     */
+    @Name("ex2.CellEvaluate")
+    @Label("Cell Evaluation")
+    @Category("Ex2")
+    @Description("A slow evaluation of a single cell")
+    @Threshold("1 ms")
+    static final class CellEvaluate extends Event {
+        @Label("Column")
+        int x;
+
+        @Label("Row")
+        int y;
+
+        @Label("Formula")
+        String formula;
+    }
+
+    @Name("ex2.SheetSave")
+    @Label("Sheet Save")
+    @Category("Ex2")
+    static final class Save extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Cells")
+        int cells;
+
+        /**
+         * @return a begun event, or null if no recording enables it
+         */
+        static Save start() {
+            if (!SAVE.isEnabled()) return null;
+            Save event = new Save();
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Commits the event, if a recording enables it.
+         * @param fileName the file saved
+         * @param count    the number of cells saved
+         */
+        void commit(String fileName, int count) {
+            if (!shouldCommit()) return;
+            file = fileName;
+            bytes = new File(fileName).length();
+            cells = count;
+            commit();
+        }
+    }
+
+    @Name("ex2.SheetLoad")
+    @Label("Sheet Load")
+    @Category("Ex2")
+    static final class Load extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Cells")
+        int cells;
+
+        /**
+         * @return a begun event, or null if no recording enables it
+         */
+        static Load start() {
+            if (!LOAD.isEnabled()) return null;
+            Load event = new Load();
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Commits the event, if a recording enables it.
+         * @param fileName the file loaded
+         * @param count    the number of cells loaded
+         */
+        void commit(String fileName, int count) {
+            if (!shouldCommit()) return;
+            file = fileName;
+            bytes = new File(fileName).length();
+            cells = count;
+            commit();
+        }
+    }
+}
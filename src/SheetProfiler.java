@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * The evaluation metrics of the cells of a sheet, indexed by slot (see Ex2Sheet.setProfiling).
+ * For every cell it counts the evaluations of its value with their cumulative and max duration, and the
+ * reads of its value by value(): a hit if the value was up to date, a miss if it had to be recomputed.
+ * Cells are evaluated concurrently by parallel recalculations, but every cell by a single thread, so
+ * the per slot counters need no synchronization.
+ */
+final class SheetProfiler {
+    private long[] evaluations, totalNanos, maxNanos, hits, misses;
+
+    /**
+     * Constructs empty metrics.
+     * @param capacity the number of slots of the sheet
+     */
+    SheetProfiler(int capacity) {
+        evaluations = new long[capacity];
+        totalNanos = new long[capacity];
+        maxNanos = new long[capacity];
+        hits = new long[capacity];
+        misses = new long[capacity];
+    }
+
+    /**
+     * Grows the metrics to the new number of slots of the sheet.
+     */
+    void grow(int capacity) {
+        evaluations = Arrays.copyOf(evaluations, capacity);
+        totalNanos = Arrays.copyOf(totalNanos, capacity);
+        maxNanos = Arrays.copyOf(maxNanos, capacity);
+        hits = Arrays.copyOf(hits, capacity);
+        misses = Arrays.copyOf(misses, capacity);
+    }
+
+    /**
+     * Records an evaluation of a cell.
+     * @param slot  the slot of the cell
+     * @param nanos the duration of the evaluation
+     */
+    void evaluated(int slot, long nanos) {
+        evaluations[slot]++;
+        totalNanos[slot] += nanos;
+        if (nanos > maxNanos[slot]) maxNanos[slot] = nanos;
+    }
+
+    /**
+     * Records a read of the value of a cell.
+     * @param slot the slot of the cell
+     * @param hit  true if the value was up to date, false if it had to be recomputed
+     */
+    void read(int slot, boolean hit) {
+        if (hit) hits[slot]++;
+        else misses[slot]++;
+    }
+
+    /**
+     * @return true if a cell was evaluated or read since profiling started
+     */
+    boolean isRecorded(int slot) {
+        return evaluations[slot] > 0 || hits[slot] > 0 || misses[slot] > 0;
+    }
+
+    long evaluations(int slot) {
+        return evaluations[slot];
+    }
+
+    long totalNanos(int slot) {
+        return totalNanos[slot];
+    }
+
+    long maxNanos(int slot) {
+        return maxNanos[slot];
+    }
+
+    long hits(int slot) {
+        return hits[slot];
+    }
+
+    long misses(int slot) {
+        return misses[slot];
+    }
+}
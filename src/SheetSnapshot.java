@@ -0,0 +1,89 @@
+/**
+ * An immutable copy of the values of a window of cells of a sheet, published by RecalcWorker for a renderer.
+ * A cell is pending if its value was out of date when the snapshot was taken (it is being recomputed),
+ * its value is then the previous one.
+ */
+final class SheetSnapshot {
+    static final SheetSnapshot EMPTY = new SheetSnapshot(0, 0, 0, 0, 0, new String[0], new String[0], new int[0], new boolean[0]);
+
+    private final int x, y, width, height;
+    private final long applied;
+    private final String[] values, data;
+    private final int[] types;
+    private final boolean[] pending;
+
+    private SheetSnapshot(int x, int y, int width, int height, long applied,
+                          String[] values, String[] data, int[] types, boolean[] pending) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.applied = applied;
+        this.values = values;
+        this.data = data;
+        this.types = types;
+        this.pending = pending;
+    }
+
+    /**
+     * Takes a snapshot of a window of cells, the cells of the window out of the sheet are empty.
+     * The sheet is not recalculated: the dirty cells of an Ex2Sheet are pending, the values of another
+     * Sheet are computed by value().
+     * @param applied the sequence number of the last edit applied to the sheet
+     */
+    static SheetSnapshot of(Sheet sheet, int x, int y, int width, int height, long applied) {
+        String[] values = new String[width * height], data = new String[width * height];
+        int[] types = new int[width * height];
+        boolean[] pending = new boolean[width * height];
+        Ex2Sheet ex2 = sheet instanceof Ex2Sheet s ? s : null;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                int k = i * height + j;
+                values[k] = data[k] = "";
+                types[k] = Ex2Utils.TEXT;
+                if (!sheet.isIn(x + i, y + j)) continue;
+                values[k] = ex2 != null ? ex2.lastValue(x + i, y + j) : sheet.value(x + i, y + j);
+                data[k] = sheet.get(x + i, y + j).getData();
+                types[k] = sheet.get(x + i, y + j).getType();
+                pending[k] = ex2 != null && ex2.isDirty(x + i, y + j);
+            }
+        }
+        return new SheetSnapshot(x, y, width, height, applied, values, data, types, pending);
+    }
+
+    /**
+     * @return true if the cell x,y is in the window of this snapshot
+     */
+    boolean covers(int x, int y) {
+        return x >= this.x && x < this.x + width && y >= this.y && y < this.y + height;
+    }
+
+    /**
+     * @return the sequence number of the last edit applied to the sheet when the snapshot was taken
+     */
+    long applied() {
+        return applied;
+    }
+
+    // The following methods require covers(x, y)
+
+    String value(int x, int y) {
+        return values[index(x, y)];
+    }
+
+    String data(int x, int y) {
+        return data[index(x, y)];
+    }
+
+    int type(int x, int y) {
+        return types[index(x, y)];
+    }
+
+    boolean isPending(int x, int y) {
+        return pending[index(x, y)];
+    }
+
+    private int index(int x, int y) {
+        return (x - this.x) * height + (y - this.y);
+    }
+}